@@ -1,11 +1,33 @@
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 
 /**
@@ -18,13 +40,27 @@ import static java.lang.Math.max;
 public class MakarShevchenko {
     /**
      * The main function of the MakarShevchenko class, which specifies
-     * the execution mode of the solution: autotests or manual run.
+     * the execution mode of the solution: autotests, benchmarks or manual
+     * run.
      *
-     * @param args command line arguments. Not used.
+     * @param args command line arguments: "autotests [tests number]" runs
+     *             {@link #autoTests(int)} (10000 tests by default),
+     *             "benchmarks" runs {@link #benchmarks()}, no arguments
+     *             run {@link #manualRun()}.
      */
     public static void main(String[] args) {
-        manualRun();
-        //autoTests(10000);
+        if (args.length == 0) {
+            manualRun();
+        }
+        else if (args[0].equals("autotests")) {
+            autoTests(args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+        }
+        else if (args[0].equals("benchmarks")) {
+            benchmarks();
+        }
+        else {
+            System.err.println("Usage: MakarShevchenko [autotests [tests number] | benchmarks]");
+        }
     }
 
     /**
@@ -55,9 +91,9 @@ public class MakarShevchenko {
             if (!solver.isConfigValid()) {
                 throw new Exception("Invalid input. Enter valid data.");
             }
-            printOutput(solver.getOutputValues());
+            printOutput(solver.getOutputValues(), solver.initMap);
             solver.solver = new BookFinding.AStarSolver(1);
-            printOutput(solver.getOutputValues());
+            printOutput(solver.getOutputValues(), solver.initMap);
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -67,100 +103,282 @@ public class MakarShevchenko {
     /**
      * One of the program execution modes, autotests. Run testsNumber number
      * of tests and prints collected statistics on different search algorithms.
-     * Search algorithms variants: Backtracking and A* with 1 and 2 variants of
-     * perceptions each. Statistics collected: successes number, total path
-     * (steps), and total time (ns).
+     * Search algorithms variants: Backtracking, A*, Layered A*, JPS and
+     * approximate HPA* with 1 and 2 variants of perceptions each.
+     * Statistics collected: successes number, total path (steps), total
+     * time (ns), and the totals of {@link
+     * BookFinding.SolverMetrics}. Tests are run in parallel on all the
+     * cores: each test generates its own map and solves it with all the
+     * variants.
      *
      * @param testsNumber number of tests to be run
      */
     public static void autoTests(int testsNumber) {
+        autoTests(testsNumber, 9, 9);
+    }
+
+    /**
+     * Runs autotests on the maps of the given size.
+     *
+     * @param testsNumber number of tests to be run
+     * @param sizeX size of the first dimension of the maps
+     * @param sizeY size of the second dimension of the maps
+     */
+    public static void autoTests(int testsNumber, int sizeX, int sizeY) {
+        autoTests(testsNumber, sizeX, sizeY, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Runs reproducible autotests on the maps of the given size. The test
+     * number i is generated by {@link AutogenInputReader} with seed + i, so
+     * the tests do not depend on the order they are run in.
+     *
+     * @param testsNumber number of tests to be run
+     * @param sizeX size of the first dimension of the maps
+     * @param sizeY size of the second dimension of the maps
+     * @param seed seed of the tests
+     */
+    public static void autoTests(int testsNumber, int sizeX, int sizeY, long seed) {
         BookFinding.Solver backtracking = new BookFinding.BacktrackingSolver();
         BookFinding.Solver aStar = new BookFinding.AStarSolver(1);
-        BookFinding solver = new BookFinding(backtracking);
-        solver.readInput(new AutogenInputReader());
-        long successes_a_1 = 0;
-        long successes_b_1 = 0;
-        long successes_a_2 = 0;
-        long successes_b_2 = 0;
-        long length_a_1 = 0;
-        long length_b_1 = 0;
-        long length_a_2 = 0;
-        long length_b_2 = 0;
-        long time_a_1 = 0;
-        long time_b_1 = 0;
-        long time_a_2 = 0;
-        long time_b_2 = 0;
-
-        for (int i = 0; i < testsNumber; i++) {
-            solver.readInput(new AutogenInputReader());
-            solver.solver = backtracking;
-            solver.actorPerception = 1;
-            Vector<Object> outputValues = solver.getOutputValues();
-            boolean isSuccess = (boolean) outputValues.get(1);
-            successes_b_1 += isSuccess ? 1 : 0;
-            Vector<Pair<Integer, Integer>> path = (Vector<Pair<Integer, Integer>>) outputValues.get(2);
-            length_b_1 += path.size();
-            Long spentTimeNs = ((Long) outputValues.get(3))/1000;
-            time_b_1 += spentTimeNs;
-
-            solver.solver = backtracking;
-            solver.actorPerception = 2;
-            outputValues = solver.getOutputValues();
-            isSuccess = (boolean) outputValues.get(1);
-            successes_b_2 += isSuccess ? 1 : 0;
-            path = (Vector<Pair<Integer, Integer>>) outputValues.get(2);
-            length_b_2 += path.size();
-            spentTimeNs = ((Long) outputValues.get(3))/1000;
-            time_b_2 += spentTimeNs;
-
-            solver.solver = aStar;
-            solver.actorPerception = 1;
-            outputValues = solver.getOutputValues();
-            isSuccess = (boolean) outputValues.get(1);
-            successes_a_1 += isSuccess ? 1 : 0;
-            path = (Vector<Pair<Integer, Integer>>) outputValues.get(2);
-            length_a_1 += path.size();
-            spentTimeNs = ((Long) outputValues.get(3))/1000;
-            time_a_1 += spentTimeNs;
-
-            solver.solver = aStar;
-            solver.actorPerception = 2;
-            outputValues = solver.getOutputValues();
-            isSuccess = (boolean) outputValues.get(1);
-            successes_a_2 += isSuccess ? 1 : 0;
-            path = (Vector<Pair<Integer, Integer>>) outputValues.get(2);
-            length_a_2 += path.size();
-            spentTimeNs = ((Long) outputValues.get(3))/1000;
-            time_a_2 += spentTimeNs;
+        BookFinding.Solver layeredAStar = new BookFinding.LayeredAStarSolver(1);
+        BookFinding.Solver jumpPoint = new BookFinding.JumpPointSolver(1);
+        BookFinding.Solver approximateHierarchicalAStar = new BookFinding.HierarchicalAStarSolver(
+                1, BookFinding.HierarchicalAStarSolver.DEFAULT_CLUSTER_SIZE, true);
+        // variants: Backtracking (variant 1), Backtracking (variant 2), A* (variant 1), A* (variant 2),
+        // Layered A* (variant 1), Layered A* (variant 2), JPS (variant 1), JPS (variant 2),
+        // Approximate HPA* (variant 1), Approximate HPA* (variant 2)
+        BookFinding.Solver[] solvers = {backtracking, backtracking, aStar, aStar, layeredAStar, layeredAStar,
+                                        jumpPoint, jumpPoint, approximateHierarchicalAStar,
+                                        approximateHierarchicalAStar};
+        int[] perceptions = {1, 2, 1, 2, 1, 2, 1, 2, 1, 2};
+        LongAdder[] successes = new LongAdder[solvers.length];
+        LongAdder[] lengths = new LongAdder[solvers.length];
+        LongAdder[] times = new LongAdder[solvers.length];
+        BookFinding.SolverMetrics[] metrics = new BookFinding.SolverMetrics[solvers.length];
+        for (int v = 0; v < solvers.length; v++) {
+            successes[v] = new LongAdder();
+            lengths[v] = new LongAdder();
+            times[v] = new LongAdder();
+            metrics[v] = new BookFinding.SolverMetrics();
+        }
+        // every worker thread counts into its own metrics, they are merged when all the tests are done
+        Queue<BookFinding.SolverMetrics[]> workersMetrics = new ConcurrentLinkedQueue<>();
+        ThreadLocal<BookFinding.SolverMetrics[]> workerMetrics = ThreadLocal.withInitial(() -> {
+            BookFinding.SolverMetrics[] variantsMetrics = new BookFinding.SolverMetrics[solvers.length];
+            for (int v = 0; v < solvers.length; v++) {
+                variantsMetrics[v] = new BookFinding.SolverMetrics();
+            }
+            workersMetrics.add(variantsMetrics);
+            return variantsMetrics;
+        });
+
+        IntStream.range(0, testsNumber).parallel().forEach(i -> {
+            Vector<Object> input = new AutogenInputReader(sizeX, sizeY, seed + i).readInput();
+            BookFinding.Map initMap = (BookFinding.Map) input.get(0);
+            // the conditions of InputReader keep the positions as Pair<Integer, Integer>
+            @SuppressWarnings("unchecked")
+            Pair<Integer, Integer> initActorPos = (Pair<Integer, Integer>) input.get(2);
+            @SuppressWarnings("unchecked")
+            Pair<Integer, Integer> exitPos = (Pair<Integer, Integer>) input.get(3);
+            BookFinding.SolveResult result = new BookFinding.SolveResult();
+            result.setMetrics(new BookFinding.SolverMetrics());
+            BookFinding.SolverMetrics[] variantsMetrics = workerMetrics.get();
+            for (int v = 0; v < solvers.length; v++) {
+                solvers[v].solve(initMap, initActorPos, exitPos, perceptions[v], result);
+                successes[v].add(result.isSuccess() ? 1 : 0);
+                lengths[v].add(result.getPath().size());
+                times[v].add(result.getSpentTimeNs()/1000);
+                variantsMetrics[v].add(result.getMetrics());
+            }
+        });
+        for (BookFinding.SolverMetrics[] variantsMetrics: workersMetrics) {
+            for (int v = 0; v < solvers.length; v++) {
+                metrics[v].add(variantsMetrics[v]);
+            }
         }
 
         System.out.println("Tests results:");
         System.out.printf("Tests number: %d\n", testsNumber);
-        System.out.printf("Successes number Backtracking (variant 1): %d\n", successes_b_1);
-        System.out.printf("Successes number Backtracking (variant 2): %d\n", successes_b_2);
-        System.out.printf("Successes number A* (variant 1):           %d\n", successes_a_1);
-        System.out.printf("Successes number A* (variant 2):           %d\n", successes_a_2);
-        System.out.printf("Total path (steps) length Backtracking (variant 1): %d\n", length_b_1);
-        System.out.printf("Total path (steps) length Backtracking (variant 2): %d\n", length_b_2);
-        System.out.printf("Total path (steps) length A* (variant 1):           %d\n", length_a_1);
-        System.out.printf("Total path (steps) length A* (variant 2):           %d\n", length_a_2);
-        System.out.printf("Total time (ns) Backtracking (variant 1): %d000\n", time_b_1);
-        System.out.printf("Total time (ns) Backtracking (variant 2): %d000\n", time_b_2);
-        System.out.printf("Total time (ns) A* (variant 1):           %d000\n", time_a_1);
-        System.out.printf("Total time (ns) A* (variant 2):           %d000\n", time_a_2);
+        System.out.printf("Successes number Backtracking (variant 1): %d\n", successes[0].sum());
+        System.out.printf("Successes number Backtracking (variant 2): %d\n", successes[1].sum());
+        System.out.printf("Successes number A* (variant 1):           %d\n", successes[2].sum());
+        System.out.printf("Successes number A* (variant 2):           %d\n", successes[3].sum());
+        System.out.printf("Successes number Layered A* (variant 1):   %d\n", successes[4].sum());
+        System.out.printf("Successes number Layered A* (variant 2):   %d\n", successes[5].sum());
+        System.out.printf("Successes number JPS (variant 1):          %d\n", successes[6].sum());
+        System.out.printf("Successes number JPS (variant 2):          %d\n", successes[7].sum());
+        System.out.printf("Successes number Approximate HPA* (variant 1): %d\n", successes[8].sum());
+        System.out.printf("Successes number Approximate HPA* (variant 2): %d\n", successes[9].sum());
+        System.out.printf("Total path (steps) length Backtracking (variant 1): %d\n", lengths[0].sum());
+        System.out.printf("Total path (steps) length Backtracking (variant 2): %d\n", lengths[1].sum());
+        System.out.printf("Total path (steps) length A* (variant 1):           %d\n", lengths[2].sum());
+        System.out.printf("Total path (steps) length A* (variant 2):           %d\n", lengths[3].sum());
+        System.out.printf("Total path (steps) length Layered A* (variant 1):   %d\n", lengths[4].sum());
+        System.out.printf("Total path (steps) length Layered A* (variant 2):   %d\n", lengths[5].sum());
+        System.out.printf("Total path (steps) length JPS (variant 1):          %d\n", lengths[6].sum());
+        System.out.printf("Total path (steps) length JPS (variant 2):          %d\n", lengths[7].sum());
+        System.out.printf("Total path (steps) length Approximate HPA* (variant 1): %d\n", lengths[8].sum());
+        System.out.printf("Total path (steps) length Approximate HPA* (variant 2): %d\n", lengths[9].sum());
+        System.out.printf("Total time (ns) Backtracking (variant 1): %d000\n", times[0].sum());
+        System.out.printf("Total time (ns) Backtracking (variant 2): %d000\n", times[1].sum());
+        System.out.printf("Total time (ns) A* (variant 1):           %d000\n", times[2].sum());
+        System.out.printf("Total time (ns) A* (variant 2):           %d000\n", times[3].sum());
+        System.out.printf("Total time (ns) Layered A* (variant 1):   %d000\n", times[4].sum());
+        System.out.printf("Total time (ns) Layered A* (variant 2):   %d000\n", times[5].sum());
+        System.out.printf("Total time (ns) JPS (variant 1):          %d000\n", times[6].sum());
+        System.out.printf("Total time (ns) JPS (variant 2):          %d000\n", times[7].sum());
+        System.out.printf("Total time (ns) Approximate HPA* (variant 1): %d000\n", times[8].sum());
+        System.out.printf("Total time (ns) Approximate HPA* (variant 2): %d000\n", times[9].sum());
+        String[] variantNames = {"Backtracking (variant 1):", "Backtracking (variant 2):", "A* (variant 1):",
+                                 "A* (variant 2):", "Layered A* (variant 1):", "Layered A* (variant 2):",
+                                 "JPS (variant 1):", "JPS (variant 2):", "Approximate HPA* (variant 1):",
+                                 "Approximate HPA* (variant 2):"};
+        for (BookFinding.SolverMetrics.Counter counter: BookFinding.SolverMetrics.Counter.values()) {
+            String counterName = counter.name().toLowerCase().replace('_', ' ');
+            for (int v = 0; v < solvers.length; v++) {
+                System.out.printf("Total %-16s %-25s %d\n", counterName, variantNames[v], metrics[v].get(counter));
+            }
+        }
+    }
+
+    /**
+     * One of the program execution modes, benchmarks. Measures throughput
+     * (operations per second) and allocation rate (bytes per operation) of
+     * the solvers and of the Map primitives on the maps of different sizes.
+     * Scenarios are generated from fixed seeds, so the runs are reproducible.
+     * Each benchmark is warmed up before the measurement, and the map
+     * generation is not measured. The Map primitives start every operation
+     * from the same state of the map.
+     */
+    public static void benchmarks() {
+        int[] mapSizes = {9, 33, 129, 513, 2049};
+        System.out.printf("%-42s %6s %14s %12s %14s\n", "Benchmark", "Size", "Ops/s", "Error", "B/op");
+        for (int mapSize: mapSizes) {
+            // keep the scenarios of the large maps in memory
+            int scenariosNumber = mapSize <= 129 ? 16 : 2;
+            AutogenInputReader inputReader = new AutogenInputReader(mapSize, mapSize, mapSize);
+            Vector<Vector<Object>> scenarios = new Vector<>();
+            for (int i = 0; i < scenariosNumber; i++) {
+                scenarios.add(inputReader.readInput());
+            }
+            BookFinding.Solver[] solvers = {new BookFinding.AStarSolver(1), new BookFinding.BacktrackingSolver(),
+                                            new BookFinding.JumpPointSolver(1),
+                                            new BookFinding.HierarchicalAStarSolver(
+                                                    1, BookFinding.HierarchicalAStarSolver.DEFAULT_CLUSTER_SIZE, true),
+                                            new BookFinding.LayeredAStarSolver(1)};
+            String[] solverNames = {"AStarSolver.solve", "BacktrackingSolver.solve", "JumpPointSolver.solve",
+                                    "HierarchicalAStarSolver.solve (approximate)", "LayeredAStarSolver.solve"};
+            // the layered search keeps four states per cell, so it is not run on the largest maps
+            int solversNumber = mapSize <= 513 ? solvers.length : solvers.length - 1;
+            BookFinding.SolveResult result = new BookFinding.SolveResult();
+            for (int s = 0; s < solversNumber; s++) {
+                BookFinding.Solver solver = solvers[s];
+                for (int perception = 1; perception <= 2; perception++) {
+                    int actorPerception = perception;
+                    runBenchmark(solverNames[s] + " (perception " + perception + ")", mapSize, i -> {
+                        Vector<Object> scenario = scenarios.elementAt(i % scenariosNumber);
+                        // the conditions of InputReader keep the positions as Pair<Integer, Integer>
+                        @SuppressWarnings("unchecked")
+                        Pair<Integer, Integer> initActorPos = (Pair<Integer, Integer>) scenario.get(2);
+                        @SuppressWarnings("unchecked")
+                        Pair<Integer, Integer> exitPos = (Pair<Integer, Integer>) scenario.get(3);
+                        solver.solve((BookFinding.Map) scenario.get(0), initActorPos, exitPos, actorPerception,
+                                     result);
+                        return result.getPath().size();
+                    });
+                }
+            }
+            runBenchmark("Map.clone", mapSize, i -> {
+                BookFinding.Map map = (BookFinding.Map) scenarios.elementAt(i % scenariosNumber).get(0);
+                return map.clone().sizeX;
+            });
+            // the changes of the map are rolled back after every operation, so every operation does the same
+            // work on the same state of the map however many operations are run
+            BookFinding.Map visitedMap = ((BookFinding.Map) scenarios.elementAt(0).get(0)).clone();
+            runBenchmark("Map.visitCell", mapSize, i -> {
+                int cell = (int) ((i * 2654435761L) % (mapSize * mapSize));
+                int checkpoint = visitedMap.checkpoint();
+                visitedMap.visitCell(cell, 1 + i % 2);
+                long flags = visitedMap.flags[cell];
+                visitedMap.rollback(checkpoint);
+                return flags;
+            });
+            BookFinding.Map enemiesMap = new BookFinding.Map(mapSize, mapSize);
+            runBenchmark("Map.addEnemy", mapSize, i -> {
+                int cell = (int) ((i * 2654435761L) % (mapSize * mapSize));
+                int checkpoint = enemiesMap.checkpoint();
+                enemiesMap.addEnemies(BookFinding.FILCH_MASK, enemiesMap.toX(cell), enemiesMap.toY(cell));
+                long isDeadly = enemiesMap.isDeadly(cell, false) ? 1 : 0;
+                enemiesMap.rollback(checkpoint);
+                return isDeadly;
+            });
+            runBenchmark("BookFinding.isMapValid", mapSize, i -> {
+                BookFinding.Map map = (BookFinding.Map) scenarios.elementAt(i % scenariosNumber).get(0);
+                return BookFinding.isMapValid(map) ? 1 : 0;
+            });
+            runBenchmark("AutogenInputReader.readInput", mapSize, i -> inputReader.readInput().size());
+        }
+        // the results of the operations are used, so the JIT can not eliminate the operations
+        System.out.printf("Checksum of the results: %d\n", benchmarkSink);
     }
 
-    private static void printOutput(Vector<Object> outputValues) {
-        String name = (String) outputValues.get(0);
-        boolean isSuccess = (boolean) outputValues.get(1);
-        Vector<Pair<Integer, Integer>> path = (Vector<Pair<Integer, Integer>>) outputValues.get(2);
-        Long spentTimeNs = (Long) outputValues.get(3);
-        BookFinding.Map initMap = (BookFinding.Map) outputValues.get(4);
+    private interface BenchmarkOperation {
+        // returns any value computed by the operation, so that the operation is not eliminated
+        long run(int invocation);
+    }
+
+    private static long benchmarkSink;
+
+    private static void runBenchmark(String name, int mapSize, BenchmarkOperation operation) {
+        int warmupIterations = 3;
+        int measurementIterations = 5;
+        long iterationNs = 200_000_000L;
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        double[] opsPerSecond = new double[measurementIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        int invocation = 0;
+        for (int iteration = 0; iteration < warmupIterations + measurementIterations; iteration++) {
+            long sink = 0;
+            long ops = 0;
+            long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                sink += operation.run(invocation++);
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNs);
+            long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+            benchmarkSink += sink;
+            if (iteration >= warmupIterations) {
+                opsPerSecond[iteration - warmupIterations] = ops * 1e9 / elapsed;
+                totalOps += ops;
+                totalBytes += bytes;
+            }
+        }
+        double mean = 0;
+        for (double value: opsPerSecond) {
+            mean += value / measurementIterations;
+        }
+        double variance = 0;
+        for (double value: opsPerSecond) {
+            variance += (value - mean) * (value - mean) / (measurementIterations - 1);
+        }
+        System.out.printf("%-42s %6d %14.1f %12.1f %14.1f\n", name, mapSize, mean, Math.sqrt(variance),
+                          (double) totalBytes / totalOps);
+    }
 
-        System.out.printf("Name of the algorithm: %s\n", name);
+    private static void printOutput(BookFinding.SolveResult result, BookFinding.Map initMap) {
+        IntList path = result.getPath();
+
+        System.out.printf("Name of the algorithm: %s\n", result.getAlgorithmName());
 
         String outcome = "Lose";
-        if (isSuccess) {
+        if (result.isSuccess()) {
             outcome = "Win";
         }
         System.out.printf("Outcome: %s\n", outcome);
@@ -168,7 +386,8 @@ public class MakarShevchenko {
         System.out.printf("The number of steps algorithm took to reach exit door: %d\n", path.size());
 
         System.out.print("The path on the map: ");
-        for (Pair<Integer, Integer> coordinate: path) {
+        for (int i = 0; i < path.size(); i++) {
+            Pair<Integer, Integer> coordinate = initMap.toPair(path.get(i));
             System.out.printf("[%d,%d] ", coordinate.first, coordinate.second);
         }
         System.out.println();
@@ -176,12 +395,16 @@ public class MakarShevchenko {
         System.out.println("Path is highlighted on the map:");
         printMap(initMap, path);
         System.out.println("Initial map:");
-        printMap(initMap, new Vector<>());
+        printMap(initMap, new IntList());
 
-        System.out.printf("Time taken by the algorithm to reach the exit door: %d ns\n", spentTimeNs);
+        System.out.printf("Time taken by the algorithm to reach the exit door: %d ns\n", result.getSpentTimeNs());
+        System.out.printf("Time taken by the legs to the cloak, the book and the exit: %d ns, %d ns, %d ns\n",
+                          result.getLegTimeNs(BookFinding.SolveResult.Leg.CLOAK),
+                          result.getLegTimeNs(BookFinding.SolveResult.Leg.BOOK),
+                          result.getLegTimeNs(BookFinding.SolveResult.Leg.EXIT));
     }
 
-    private static void printMap(BookFinding.Map map, Vector<Pair<Integer, Integer>> path) {
+    private static void printMap(BookFinding.Map map, IntList path) {
         String actor = "🤠";
         String cat = "\uD83D\uDE3E";
         String fitch = "\uD83E\uDDD9\u200D";
@@ -196,17 +419,11 @@ public class MakarShevchenko {
             System.out.printf("%s ", numToEmoji(y));
             for (int x = 0; x < map.sizeX; x++) {
                 BookFinding.Map.Cell cell = map.getCell(x, y);
-                boolean isVisited = false;
-                for (Pair<Integer, Integer> coordinate: path) {
-                    if (coordinate.first == x && coordinate.second == y) {
-                        isVisited = true;
-                        break;
-                    }
-                }
+                boolean isVisited = path.contains(map.index(x, y));
                 if (isVisited) {
                     System.out.printf("%s", step);
                 }
-                else if (cell.container.size() > 1) {
+                else if (cell.getContainer().size() > 1) {
                     System.out.printf("%s", mix);
                 }
                 else if (cell.contains(BookFinding.EXIT)) {
@@ -227,7 +444,7 @@ public class MakarShevchenko {
                 else if (cell.contains(BookFinding.FILCH)) {
                     System.out.printf("%s", fitch);
                 }
-                else if (cell.isUnderPerception) {
+                else if (cell.isUnderPerception()) {
                     System.out.printf("%s", perception);
                 }
                 else {
@@ -290,6 +507,17 @@ public class MakarShevchenko {
         static String CLOAK = "cloak";
         static String EXIT = "exit";
 
+        /**
+         * Masks of the item kinds in the item masks of the {@link Map}
+         * cells.
+         */
+        static final int FILCH_MASK = Map.registerEnemyKind(FILCH, 2);
+        static final int CAT_MASK = Map.registerEnemyKind(CAT, 1);
+        static final int ACTOR_MASK = Map.registerItemKind(ACTOR);
+        static final int BOOK_MASK = Map.registerItemKind(BOOK);
+        static final int CLOAK_MASK = Map.registerItemKind(CLOAK);
+        static final int EXIT_MASK = Map.registerItemKind(EXIT);
+
         /**
          * Constructor for a BookFinding class that initializes solver.
          *
@@ -339,20 +567,15 @@ public class MakarShevchenko {
          * information about the solution. The solution is the outcome of the
          * game and the path from the actor's starting position to the book and
          * then exit. Technical information includes the name of the algorithm
-         * used, the time spent on the solution, and the map of the game.
+         * used and the time spent on the solution.
          *
-         * @return [String name, boolean isSuccess,
-         *          Vector< Pair< Integer, Integer>> path, Long spentTimeNs,
-         *          Map initMap] - a solution and the technical information
-         *          about the solution
+         * @return a solution and the technical information about the
+         *         solution. The path consists of the cell indices of initMap,
+         *         see {@link Map#index(int, int)}
          */
-        public Vector<Object> getOutputValues() {
-            // Output: [String name, boolean isSuccess, \
-            // Vector<Pair<Integer, Integer>> path, Long spentTimeNs, Map initMap]
-            Vector<Object> result = solver.solve(initMap, new Pair<>(initActorX, initActorY),
-                                                 new Pair<>(exitX, exitY), actorPerception);
-            result.add(initMap);
-            return result;
+        public SolveResult getOutputValues() {
+            return solver.solve(initMap, new Pair<>(initActorX, initActorY), new Pair<>(exitX, exitY),
+                                actorPerception);
         }
 
         /**
@@ -363,32 +586,16 @@ public class MakarShevchenko {
          * @return whether the map satisfy problem requirements
          */
         public static boolean isMapValid(Map map) {
-            for (int y = 0; y < map.sizeY; y++) {
-                for (int x = 0; x < map.sizeX; x++) {
-                    Map.Cell cell = map.getCell(x, y);
-                    boolean hasExit = false;
-                    boolean hasBook = false;
-                    boolean hasCloak = false;
-                    for (Object item: cell.container) {
-                        if (item.equals(EXIT)) {
-                            hasExit = true;
-                        }
-                        if (item.equals(BOOK)) {
-                            hasBook = true;
-                        }
-                        if (item.equals(CLOAK)) {
-                            hasCloak = true;
-                        }
-                    }
-                    if (hasExit && (cell.isUnderPerception || hasBook)) {
-                        return false;
-                    }
-                    if (hasBook && cell.isUnderPerception) {
-                        return false;
-                    }
-                    if (hasCloak && cell.isUnderPerception) {
-                        return false;
-                    }
+            // only the cells with the items can break the requirements
+            IntList cells = map.findItems(EXIT_MASK | BOOK_MASK | CLOAK_MASK, new IntList());
+            for (int j = 0; j < cells.size(); j++) {
+                int i = cells.get(j);
+                int items = map.items[i];
+                if ((items & EXIT_MASK) != 0 && (items & BOOK_MASK) != 0) {
+                    return false;
+                }
+                if (map.isUnderPerception(i)) {
+                    return false;
                 }
             }
             return true;
@@ -397,7 +604,11 @@ public class MakarShevchenko {
         /**
          * Solver interface describes the interface for Book Finding problem
          * solvers. It describes the initial conditions known to solvers and
-         * the output format.
+         * the output format. Solvers keep no solution state between the
+         * calls, only the search structures reused by the next calls of the
+         * same thread, so one solver can be used from several threads. The
+         * map is changed during the solution and restored before return, so
+         * one map must not be solved from several threads at once.
          */
         public interface Solver {
             /**
@@ -407,19 +618,441 @@ public class MakarShevchenko {
              * starting position to the book and then to the exit. The actor
              * may not find the path or be caught, so the outcome of the game
              * is also returned. Technical information includes the name of the
-             * algorithm used, the time spent on the solution, and the map of
-             * the game.
+             * algorithm used and the time spent on the solution.
              *
              * @param map map of the game
              * @param initActorPos initial position of the actor
              * @param exitPos position of the exit
              * @param perception perception distance of the actor
-             * @return [String name, boolean isSuccess, Vector< Pair< Integer,
-             * Integer>> path, Long spentTimeNs] - a solution and the technical
+             * @return new result with the solution and the technical
              * information about the solution
              */
-            Vector<Object> solve(Map map, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
-                                 int perception);
+            default SolveResult solve(Map map, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
+                                      int perception) {
+                return solve(map, initActorPos, exitPos, perception, new SolveResult());
+            }
+
+            /**
+             * Solves the Book Finding problem and writes the solution into
+             * the given result. The previous content of the result is
+             * discarded, so one result can be reused for many solutions.
+             *
+             * @param map map of the game
+             * @param initActorPos initial position of the actor
+             * @param exitPos position of the exit
+             * @param perception perception distance of the actor
+             * @param result result to write the solution into
+             * @return the given result
+             */
+            SolveResult solve(Map map, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
+                              int perception, SolveResult result);
+
+            /**
+             * Solves the batch of scenarios and passes every solution to the
+             * consumer. The scenarios have the format of {@link
+             * InputReader#readInput()}. The scenarios of a parallel stream
+             * are solved in parallel. Every thread reuses one result and the
+             * search structures of the solver for all its scenarios, so the
+             * batch does not allocate in the steady state. The result is
+             * overwritten by the next scenario of the thread, so the consumer
+             * must copy the parts of the result it keeps.
+             *
+             * @param scenarios scenarios to solve, one map must not occur
+             *                  twice in a parallel stream
+             * @param consumer consumer of the scenario and its solution, it is
+             *                 called on the thread that solved the scenario
+             */
+            default void solveBatch(Stream<Vector<Object>> scenarios,
+                                    BiConsumer<Vector<Object>, SolveResult> consumer) {
+                ThreadLocal<SolveResult> results = ThreadLocal.withInitial(SolveResult::new);
+                scenarios.forEach(scenario -> {
+                    SolveResult result = results.get();
+                    // the scenarios of InputReader keep the positions as Pair<Integer, Integer>
+                    @SuppressWarnings("unchecked")
+                    Pair<Integer, Integer> initActorPos = (Pair<Integer, Integer>) scenario.get(2);
+                    @SuppressWarnings("unchecked")
+                    Pair<Integer, Integer> exitPos = (Pair<Integer, Integer>) scenario.get(3);
+                    solve((Map) scenario.get(0), initActorPos, exitPos, (int) scenario.get(1), result);
+                    consumer.accept(scenario, result);
+                });
+            }
+        }
+
+        /**
+         * SolveResult class describes the solution to the Book Finding
+         * problem found by a {@link Solver}: the outcome of the game, the
+         * path of the actor and the time spent on the solution. The time is
+         * also measured separately for the legs of the path to the cloak, to
+         * the book and to the exit. The result is mutable, so it can be passed
+         * to the solver again, then its storage is reused. If the result has
+         * {@link SolverMetrics}, the solver also counts its work into them.
+         */
+        public static final class SolveResult {
+            /**
+             * Outcome describes how the game ended.
+             */
+            public enum Outcome {
+                /**
+                 * The actor reached the exit.
+                 */
+                WIN,
+                /**
+                 * The actor was caught by an enemy.
+                 */
+                CAUGHT,
+                /**
+                 * The actor did not find the path to the book or to the exit.
+                 */
+                NO_PATH
+            }
+
+            /**
+             * Leg describes the part of the path that ends at one of the
+             * objectives. The leg that does not reach any objective (the
+             * actor is caught or there is no path) belongs to the book if the
+             * book is not found yet, otherwise to the exit.
+             */
+            public enum Leg {
+                CLOAK,
+                BOOK,
+                EXIT
+            }
+
+            private String algorithmName;
+            private Outcome outcome;
+            final IntList path = new IntList();
+            private long startNs;
+            private long spentTimeNs;
+            private final long[] legTimesNs = new long[3];
+            private SolverMetrics metrics;
+
+            /**
+             * Returns the name of the algorithm used.
+             *
+             * @return name of the algorithm
+             */
+            public String getAlgorithmName() {
+                return algorithmName;
+            }
+
+            /**
+             * Returns the outcome of the game.
+             *
+             * @return outcome of the game
+             */
+            public Outcome getOutcome() {
+                return outcome;
+            }
+
+            /**
+             * Returns whether the actor won the game.
+             *
+             * @return whether the outcome is {@link Outcome#WIN}
+             */
+            public boolean isSuccess() {
+                return outcome == Outcome.WIN;
+            }
+
+            /**
+             * Returns the path of the actor. The path consists of the cell
+             * indices of the map, see {@link Map#index(int, int)}. The path is
+             * overwritten when the result is reused.
+             *
+             * @return path of the actor
+             */
+            public IntList getPath() {
+                return path;
+            }
+
+            /**
+             * Returns the time spent on the solution.
+             *
+             * @return time spent on the solution (in ns)
+             */
+            public long getSpentTimeNs() {
+                return spentTimeNs;
+            }
+
+            /**
+             * Returns the time spent on the leg of the path. The time of the
+             * leg the actor did not walk is 0.
+             *
+             * @param leg leg of the path
+             * @return time spent on the leg (in ns)
+             */
+            public long getLegTimeNs(Leg leg) {
+                return legTimesNs[leg.ordinal()];
+            }
+
+            /**
+             * Returns the metrics the solver counts its work into.
+             *
+             * @return metrics of the solution or null if they are disabled
+             */
+            public SolverMetrics getMetrics() {
+                return metrics;
+            }
+
+            /**
+             * Sets the metrics the solver counts its work into. The metrics
+             * are cleared at the start of each solution. Metrics are disabled
+             * by default.
+             *
+             * @param metrics metrics of the solution or null to disable them
+             */
+            public void setMetrics(SolverMetrics metrics) {
+                this.metrics = metrics;
+            }
+
+            long start(String algorithmName) {
+                // clears the result and returns the start time of the first leg
+                this.algorithmName = algorithmName;
+                this.outcome = null;
+                path.clear();
+                Arrays.fill(legTimesNs, 0);
+                spentTimeNs = 0;
+                if (metrics != null) {
+                    metrics.clear();
+                }
+                startNs = System.nanoTime();
+                return startNs;
+            }
+
+            long endLeg(Leg leg, long legStartNs) {
+                // returns the start time of the next leg
+                long now = System.nanoTime();
+                legTimesNs[leg.ordinal()] += now - legStartNs;
+                if (metrics != null) {
+                    metrics.endLeg(leg);
+                }
+                return now;
+            }
+
+            SolveResult finish(boolean isCaught, boolean isExitReached) {
+                if (isCaught) {
+                    outcome = Outcome.CAUGHT;
+                }
+                else if (isExitReached) {
+                    outcome = Outcome.WIN;
+                }
+                else {
+                    outcome = Outcome.NO_PATH;
+                }
+                spentTimeNs = System.nanoTime() - startNs;
+                SolverMetrics.publish(this);
+                return this;
+            }
+        }
+
+        /**
+         * SolverMetrics class counts the work done by a {@link Solver} during
+         * one solution, separately for each leg of the path. The metrics are
+         * enabled by {@link SolveResult#setMetrics(SolverMetrics)}; when they
+         * are disabled, the solvers only check for null. Each solution is
+         * also published as a JFR event "BookFinding.Solve", and each leg of
+         * the solution with the metrics as a "BookFinding.Leg" event.
+         */
+        public static final class SolverMetrics {
+            /**
+             * Counter describes the kind of the work counted.
+             */
+            public enum Counter {
+                /**
+                 * Cells whose neighbors were examined by the search.
+                 */
+                EXPANSIONS,
+                /**
+                 * Improvements of the distance to a cell (A*).
+                 */
+                RELAXATIONS,
+                /**
+                 * Cells taken from the open set (A*).
+                 */
+                OPEN_SET_POPS,
+                /**
+                 * Steps back from a dead end (Backtracking).
+                 */
+                BACKTRACK_POPS,
+                /**
+                 * Calls of {@link Map#visitCell(int, int)}.
+                 */
+                VISITED_CELLS,
+                /**
+                 * Cells that became seen.
+                 */
+                SEEN_CELLS,
+                /**
+                 * Changes of the map recorded to restore the map after the
+                 * solution, see {@link Map#checkpoint()}.
+                 */
+                UNDO_LOG_RECORDS
+            }
+
+            private static final int COUNTERS_NUMBER = Counter.values().length;
+            private static final EventType SOLVE_EVENT_TYPE = EventType.getEventType(SolveEvent.class);
+            private static final EventType LEG_EVENT_TYPE = EventType.getEventType(LegEvent.class);
+
+            // counts of the current leg, which are moved to the leg when it ends
+            private final long[] legCounts = new long[COUNTERS_NUMBER];
+            private final long[] counts = new long[SolveResult.Leg.values().length * COUNTERS_NUMBER];
+
+            /**
+             * Returns the count of the work of the given kind on the given
+             * leg.
+             *
+             * @param leg leg of the path
+             * @param counter kind of the work
+             * @return count of the work
+             */
+            public long get(SolveResult.Leg leg, Counter counter) {
+                return counts[leg.ordinal() * COUNTERS_NUMBER + counter.ordinal()];
+            }
+
+            /**
+             * Returns the count of the work of the given kind on all the legs.
+             *
+             * @param counter kind of the work
+             * @return count of the work
+             */
+            public long get(Counter counter) {
+                long count = 0;
+                for (int leg = 0; leg < counts.length; leg += COUNTERS_NUMBER) {
+                    count += counts[leg + counter.ordinal()];
+                }
+                return count;
+            }
+
+            /**
+             * Adds the counts of the other metrics to these metrics. It is
+             * used to aggregate the metrics of many solutions.
+             *
+             * @param other metrics to be added
+             */
+            public void add(SolverMetrics other) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += other.counts[i];
+                }
+            }
+
+            /**
+             * Sets all the counts to 0.
+             */
+            public void clear() {
+                Arrays.fill(legCounts, 0);
+                Arrays.fill(counts, 0);
+            }
+
+            void increment(Counter counter) {
+                legCounts[counter.ordinal()]++;
+            }
+
+            void endLeg(SolveResult.Leg leg) {
+                int offset = leg.ordinal() * COUNTERS_NUMBER;
+                for (int i = 0; i < COUNTERS_NUMBER; i++) {
+                    counts[offset + i] += legCounts[i];
+                    legCounts[i] = 0;
+                }
+            }
+
+            static void publish(SolveResult result) {
+                // the events are built only while they are recorded, so the solution does not allocate otherwise
+                if (!SOLVE_EVENT_TYPE.isEnabled()) {
+                    return;
+                }
+                SolveEvent event = new SolveEvent();
+                SolverMetrics metrics = result.metrics;
+                event.algorithm = result.algorithmName;
+                event.outcome = result.outcome.name();
+                event.pathLength = result.path.size();
+                event.spentTime = result.spentTimeNs;
+                event.hasMetrics = metrics != null;
+                if (metrics != null) {
+                    event.expansions = metrics.get(Counter.EXPANSIONS);
+                    event.relaxations = metrics.get(Counter.RELAXATIONS);
+                    event.openSetPops = metrics.get(Counter.OPEN_SET_POPS);
+                    event.backtrackPops = metrics.get(Counter.BACKTRACK_POPS);
+                    event.visitedCells = metrics.get(Counter.VISITED_CELLS);
+                    event.seenCells = metrics.get(Counter.SEEN_CELLS);
+                    event.undoLogRecords = metrics.get(Counter.UNDO_LOG_RECORDS);
+                    for (SolveResult.Leg leg: SolveResult.Leg.values()) {
+                        if (result.getLegTimeNs(leg) == 0 || !LEG_EVENT_TYPE.isEnabled()) {
+                            // the leg is not walked or the leg events are not recorded
+                            continue;
+                        }
+                        LegEvent legEvent = new LegEvent();
+                        legEvent.algorithm = result.algorithmName;
+                        legEvent.leg = leg.name();
+                        legEvent.spentTime = result.getLegTimeNs(leg);
+                        legEvent.expansions = metrics.get(leg, Counter.EXPANSIONS);
+                        legEvent.relaxations = metrics.get(leg, Counter.RELAXATIONS);
+                        legEvent.openSetPops = metrics.get(leg, Counter.OPEN_SET_POPS);
+                        legEvent.backtrackPops = metrics.get(leg, Counter.BACKTRACK_POPS);
+                        legEvent.visitedCells = metrics.get(leg, Counter.VISITED_CELLS);
+                        legEvent.seenCells = metrics.get(leg, Counter.SEEN_CELLS);
+                        legEvent.undoLogRecords = metrics.get(leg, Counter.UNDO_LOG_RECORDS);
+                        legEvent.commit();
+                    }
+                }
+                event.commit();
+            }
+
+            @Name("BookFinding.Solve")
+            @Label("Book Finding Solution")
+            @Category("Book Finding")
+            private static class SolveEvent extends Event {
+                @Label("Algorithm")
+                String algorithm;
+                @Label("Outcome")
+                String outcome;
+                @Label("Path Length")
+                int pathLength;
+                @Label("Spent Time")
+                @Timespan
+                long spentTime;
+                @Label("Has Metrics")
+                boolean hasMetrics;
+                @Label("Expansions")
+                long expansions;
+                @Label("Relaxations")
+                long relaxations;
+                @Label("Open Set Pops")
+                long openSetPops;
+                @Label("Backtrack Pops")
+                long backtrackPops;
+                @Label("Visited Cells")
+                long visitedCells;
+                @Label("Seen Cells")
+                long seenCells;
+                @Label("Undo Log Records")
+                long undoLogRecords;
+            }
+
+            @Name("BookFinding.Leg")
+            @Label("Book Finding Leg")
+            @Category("Book Finding")
+            private static class LegEvent extends Event {
+                @Label("Algorithm")
+                String algorithm;
+                @Label("Leg")
+                String leg;
+                @Label("Spent Time")
+                @Timespan
+                long spentTime;
+                @Label("Expansions")
+                long expansions;
+                @Label("Relaxations")
+                long relaxations;
+                @Label("Open Set Pops")
+                long openSetPops;
+                @Label("Backtrack Pops")
+                long backtrackPops;
+                @Label("Visited Cells")
+                long visitedCells;
+                @Label("Seen Cells")
+                long seenCells;
+                @Label("Undo Log Records")
+                long undoLogRecords;
+            }
         }
 
         /**
@@ -429,7 +1062,10 @@ public class MakarShevchenko {
          * max(dx, dy) from target.
          */
         public static class AStarSolver implements Solver {
-            private int stepSize;
+            final int stepSize;
+            private final String name;
+            // search structures of every thread, reused by its next solves
+            private final ThreadLocal<SearchState> searchStates = new ThreadLocal<>();
 
             /**
              * Constructor initializes algorithm-specific information.
@@ -439,1186 +1075,4037 @@ public class MakarShevchenko {
              *                 next step.
              */
             public AStarSolver(int stepSize) {
+                this(stepSize, "A*");
+            }
+
+            AStarSolver(int stepSize, String name) {
                 this.stepSize = stepSize;
+                this.name = name;
             }
 
             /**
              * Solves Book Finding problem using A* path finding algorithm.
+             * The map is changed during the search and restored before
+             * return.
              */
             @Override
-            public Vector<Object> solve(Map initMap, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
-                              int perception) {
-                // Output: [String name, boolean isSuccess, \
-                // Vector<Pair<Integer, Integer>> path, Long spentTimeNs]
+            public SolveResult solve(Map initMap, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
+                                     int perception, SolveResult result) {
+                int checkpoint = initMap.checkpoint();
+                initMap.metrics = result.getMetrics();
+                try {
+                    return solveInPlace(initMap, initMap.index(initActorPos.first, initActorPos.second),
+                                        initMap.index(exitPos.first, exitPos.second), perception, result);
+                }
+                finally {
+                    initMap.metrics = null;
+                    initMap.rollback(checkpoint);
+                }
+            }
 
-                Instant previous = Instant.now();
+            private SolveResult solveInPlace(Map map, int initActorPos, int exitPos, int perception,
+                                             SolveResult result) {
+                long legStart = result.start(name);
+                IntList path = result.path;
 
                 // init map
-                Map map = initMap.clone();
-                calculateHeuristics(exitPos, map);
+                map.calculateHeuristics(exitPos);
+                SearchState state = searchStates.get();
+                if (state == null || !state.fits(map)) {
+                    state = new SearchState(map);
+                    searchStates.set(state);
+                }
+                state.bind(map);
 
                 // init -> try to find book or cloak
-                Vector<Object> objsToFind = new Vector<>();
-                objsToFind.add(CLOAK);
-                objsToFind.add(BOOK);
-                Vector<Object> isDead_path_resultMap = findPath(map, initActorPos, objsToFind, false,
-                                                                perception);
-                boolean isDead = (boolean) isDead_path_resultMap.elementAt(0);
-                Vector<Pair<Integer, Integer>> pathToBookOrCloak =
-                        (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                map = (Map) isDead_path_resultMap.elementAt(2);
+                IntList pathToBookOrCloak = findPath(state, map, initActorPos, CLOAK_MASK | BOOK_MASK, false,
+                                                     perception);
+                boolean isDead = state.isDead;
+                path.addAll(pathToBookOrCloak);
 
                 if (isDead) {
                     // init, death
-                    Instant current = Instant.now();
-                    Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                    Vector<Object> result = new Vector<>();
-                    result.add("A*");
-                    result.add(false);
-                    result.add(pathToBookOrCloak);
-                    result.add(spentTimeNs);
-                    return result;
+                    result.endLeg(SolveResult.Leg.BOOK, legStart);
+                    return result.finish(true, false);
                 }
 
-                Pair<Integer, Integer> lastCellPos = pathToBookOrCloak.lastElement();
-                Map.Cell lastCell = map.getCell(lastCellPos);
-                if (lastCell.contains(CLOAK)) {
+                int lastCellPos = pathToBookOrCloak.last();
+                if (map.containsAny(lastCellPos, CLOAK_MASK)) {
+                    legStart = result.endLeg(SolveResult.Leg.CLOAK, legStart);
                     // init, cloak -> try to find book
-                    objsToFind = new Vector<>();
-                    objsToFind.add(BOOK);
-                    isDead_path_resultMap = findPath(map, lastCellPos, objsToFind, true, perception);
-                    isDead = (boolean) isDead_path_resultMap.elementAt(0);
-                    Vector<Pair<Integer, Integer>> pathFromCloakToBook =
-                            (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
+                    IntList pathFromCloakToBook = findPath(state, map, lastCellPos, BOOK_MASK, true, perception);
+                    isDead = state.isDead;
+                    path.addAll(pathFromCloakToBook, 1);
+                    legStart = result.endLeg(SolveResult.Leg.BOOK, legStart);
 
                     if (isDead) {
                         // init, cloak, death
-                        Instant current = Instant.now();
-                        Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-                        Vector<Pair<Integer, Integer>> path = new Vector<>();
-                        path.addAll(pathToBookOrCloak);
-                        pathFromCloakToBook.remove(0);
-                        path.addAll(pathFromCloakToBook);
-
-                        Vector<Object> result = new Vector<>();
-                        result.add("A*");
-                        result.add(false);
-                        result.add(path);
-                        result.add(spentTimeNs);
-                        return result;
-                    }
-
-                    lastCellPos = pathFromCloakToBook.lastElement();
-                    // init, cloak, book -> try to find exit
-                    objsToFind = new Vector<>();
-                    objsToFind.add(EXIT);
-                    isDead_path_resultMap = findPath(map, lastCellPos, objsToFind, true, perception);
-                    isDead = (boolean) isDead_path_resultMap.elementAt(0);
-                    Vector<Pair<Integer, Integer>> pathFromCloakBookToExit =
-                            (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
+                        return result.finish(true, false);
+                    }
 
+                    lastCellPos = pathFromCloakToBook.last();
+                    // init, cloak, book -> try to find exit
+                    IntList pathFromCloakBookToExit = findPath(state, map, lastCellPos, EXIT_MASK, true, perception);
+                    isDead = state.isDead;
+                    path.addAll(pathFromCloakBookToExit, 1);
+                    result.endLeg(SolveResult.Leg.EXIT, legStart);
 
                     // init, cloak, book, exit
-                    Instant current = Instant.now();
-                    Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-                    Vector<Pair<Integer, Integer>> path = new Vector<>();
-                    path.addAll(pathToBookOrCloak);
-                    pathFromCloakToBook.remove(0);
-                    path.addAll(pathFromCloakToBook);
-                    pathFromCloakBookToExit.remove(0);
-                    path.addAll(pathFromCloakBookToExit);
-
-                    Vector<Object> result = new Vector<>();
-                    result.add("A*");
-                    result.add(!isDead && map.getCell(path.lastElement()).contains(EXIT));
-
-                    result.add(path);
-                    result.add(spentTimeNs);
-                    return result;
+                    return result.finish(isDead, map.containsAny(path.last(), EXIT_MASK));
                 }
 
-                lastCellPos = pathToBookOrCloak.lastElement();
+                legStart = result.endLeg(SolveResult.Leg.BOOK, legStart);
+                lastCellPos = pathToBookOrCloak.last();
                 // init, book -> try to find exit or cloak
-                objsToFind = new Vector<>();
-                objsToFind.add(EXIT);
-                objsToFind.add(CLOAK);
-                isDead_path_resultMap = findPath(map, lastCellPos, objsToFind, false, perception);
-                isDead = (boolean) isDead_path_resultMap.elementAt(0);
-                Vector<Pair<Integer, Integer>> pathFromBookToExitOrCloak =
-                        (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                map = (Map) isDead_path_resultMap.elementAt(2);
-
-                lastCellPos = pathFromBookToExitOrCloak.lastElement();
-                lastCell = map.getCell(lastCellPos);
-                if (lastCell.contains(CLOAK)) {
-                    // init, book, cloak -> try to find exit
-                    objsToFind = new Vector<>();
-                    objsToFind.add(EXIT);
-                    isDead_path_resultMap = findPath(map, lastCellPos, objsToFind, false, perception);
-                    isDead = (boolean) isDead_path_resultMap.elementAt(0);
-                    Vector<Pair<Integer, Integer>> pathFromBookCloakToExit =
-                            (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
+                IntList pathFromBookToExitOrCloak = findPath(state, map, lastCellPos, EXIT_MASK | CLOAK_MASK, false,
+                                                             perception);
+                isDead = state.isDead;
 
-                    // init, book, cloak, exit or nothing
-                    Instant current = Instant.now();
-                    Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-                    Vector<Pair<Integer, Integer>> path = new Vector<>();
-                    path.addAll(pathToBookOrCloak);
+                lastCellPos = pathFromBookToExitOrCloak.last();
+                if (map.containsAny(lastCellPos, CLOAK_MASK)) {
                     path.addAll(pathFromBookToExitOrCloak);
+                    legStart = result.endLeg(SolveResult.Leg.CLOAK, legStart);
+                    // init, book, cloak -> try to find exit
+                    IntList pathFromBookCloakToExit = findPath(state, map, lastCellPos, EXIT_MASK, false, perception);
+                    isDead = state.isDead;
                     path.addAll(pathFromBookCloakToExit);
+                    result.endLeg(SolveResult.Leg.EXIT, legStart);
 
-                    Vector<Object> result = new Vector<>();
-                    result.add("A*");
-                    result.add(!isDead && map.getCell(path.lastElement()).contains(EXIT));
-                    result.add(path);
-                    result.add(spentTimeNs);
-                    return result;
+                    // init, book, cloak, exit or nothing
+                    return result.finish(isDead, map.containsAny(path.last(), EXIT_MASK));
                 }
 
                 // init, book, exit or nothing
-                Instant current = Instant.now();
-                Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-                Vector<Pair<Integer, Integer>> path = new Vector<>();
-                path.addAll(pathToBookOrCloak);
-                pathFromBookToExitOrCloak.remove(0);
-                path.addAll(pathFromBookToExitOrCloak);
-
-                Vector<Object> result = new Vector<>();
-                result.add("A*");
-                result.add(!isDead && map.getCell(path.lastElement()).contains(EXIT));
-                result.add(path);
-                result.add(spentTimeNs);
-                return result;
+                path.addAll(pathFromBookToExitOrCloak, 1);
+                result.endLeg(SolveResult.Leg.EXIT, legStart);
+                return result.finish(isDead, map.containsAny(path.last(), EXIT_MASK));
             }
 
-            private Vector<Object> findPath(Map map, Pair<Integer, Integer> initPos, Vector<Object> objsToFind,
-                                            boolean hasCloak, int perception) {
-                // returns [boolean isDead, Vector<Pair<Integer, Integer>> path, Map resultMap] to first found obj from objsToFind
+            IntList findPath(SearchState state, Map map, int initPos, int objsToFind, boolean hasCloak,
+                             int perception) {
+                // returns the path to first found obj from objsToFind, valid until the next search, state.isDead
+                // tells if the actor died at its end
                 // implements Dijkstra search algorithm
+                // the map is changed in place with the new knowledge of the actor
 
-                Map resultMap = map.clone();
-                for (int y = 0; y < resultMap.sizeY; y++) {
-                    for (int x = 0; x < resultMap.sizeX; x++) {
-                        resultMap.getCell(x, y).distance = Map.Cell.INFINITELY_FAR;
-                    }
-                }
-                resultMap.getCell(initPos).distance = 0;
+                Map resultMap = map;
+                state.reset(hasCloak);
+                state.setDistance(initPos, 0, Map.NO_INDEX);
 
                 // map with parent
-                Vector<Vector<Pair<Integer, Integer>>> parentMap = new Vector<>();
-                for (int y = 0; y < resultMap.sizeY; y++) {
-                    Vector<Pair<Integer, Integer>> mapRow = new Vector<>();
-                    for (int x = 0; x < resultMap.sizeX; x++) {
-                        mapRow.add(null);
-                    }
-                    parentMap.add(mapRow);
-                }
+                int[] parentMap = state.parentMap;
 
                 // create a container with cells that could make further optimal path
-                Vector<Pair<Integer, Integer>> activeCellsCoords = new Vector<>();
-                activeCellsCoords.add(initPos);
+                OpenSet activeCells = state.activeCells;
+                activeCells.add(initPos, resultMap.heuristics(initPos));
+                resultMap.seenListener = activeCells;
+                SolverMetrics metrics = resultMap.metrics;
 
                 // try to find objsToFind
-                Pair<Integer, Integer> activeCellCoords = this.popNextActiveCellCoords(activeCellsCoords, resultMap,
-                                                                                       hasCloak);
-                Map.Cell activeCell = resultMap.getCell(activeCellCoords);
+                int activeCell = activeCells.pop();
+                if (metrics != null) {
+                    metrics.increment(SolverMetrics.Counter.OPEN_SET_POPS);
+                }
                 // interact with cell
-                resultMap.visitCell(activeCellCoords, perception);
-                if (isActorDead(activeCell, hasCloak)) {
+                resultMap.visitCell(activeCell, perception);
+                if (isActorDead(resultMap, activeCell, hasCloak)) {
                     // game over
-                    Vector<Pair<Integer, Integer>> path = reconstructPath(activeCellCoords, initPos, parentMap);
-                    Vector<Object> result = new Vector<>();
-                    result.add(true);
-                    result.add(path);
-                    result.add(resultMap);
-                    return result;
+                    resultMap.seenListener = null;
+                    state.isDead = true;
+                    return reconstructPath(state.path, activeCell, initPos, parentMap);
                 }
 
-                while (!activeCell.contains(objsToFind)) {
+                while (!resultMap.containsAny(activeCell, objsToFind)) {
+                    if (metrics != null) {
+                        metrics.increment(SolverMetrics.Counter.EXPANSIONS);
+                    }
                     // calculate distance to neighbors and update activeCells
-                    int potentialDist = activeCell.distance + stepSize;
-                    for (int y = activeCellCoords.second - 1; y <= activeCellCoords.second + 1; y++) {
+                    int potentialDist = state.distance(activeCell) + stepSize;
+                    int activeX = resultMap.toX(activeCell);
+                    int activeY = resultMap.toY(activeCell);
+                    for (int y = activeY - 1; y <= activeY + 1; y++) {
                         if (y >= 0 && y < resultMap.sizeY) {
-                            for (int x = activeCellCoords.first - 1; x <= activeCellCoords.first + 1; x++) {
-                                if (x >= 0 && x < resultMap.sizeX &&
-                                        !(x == activeCellCoords.first && y == activeCellCoords.second)) {
-                                    Map.Cell cell = resultMap.getCell(x, y);
-                                    if (potentialDist < cell.distance) {
-                                        cell.distance = potentialDist;
-                                        parentMap.elementAt(y).setElementAt(activeCellCoords, x);
-                                        activeCellsCoords.add(new Pair<>(x, y));
+                            for (int x = activeX - 1; x <= activeX + 1; x++) {
+                                if (x >= 0 && x < resultMap.sizeX && !(x == activeX && y == activeY)) {
+                                    int cell = resultMap.index(x, y);
+                                    if (potentialDist < state.distance(cell)) {
+                                        state.setDistance(cell, potentialDist, activeCell);
+                                        activeCells.add(cell, potentialDist + resultMap.heuristics(x, y));
+                                        if (metrics != null) {
+                                            metrics.increment(SolverMetrics.Counter.RELAXATIONS);
+                                        }
                                     }
                                 }
                             }
                         }
                     }
                     // choose next cell
-                    Pair<Integer, Integer> nextActiveCellCoords =
-                            popNextActiveCellCoords(activeCellsCoords, resultMap, hasCloak);
-                    if(nextActiveCellCoords == null) {
+                    int nextActiveCell = activeCells.pop();
+                    if (metrics != null) {
+                        metrics.increment(SolverMetrics.Counter.OPEN_SET_POPS);
+                    }
+                    if (nextActiveCell == Map.NO_INDEX) {
                         // no more steps possible
-                        Vector<Pair<Integer, Integer>> path = reconstructPath(activeCellCoords, initPos, parentMap);
-                        Vector<Object> result = new Vector<>();
-                        result.add(false);
-                        result.add(path);
-                        result.add(resultMap);
-                        return result;
-                    }
-                    activeCellCoords = nextActiveCellCoords;
-                    activeCell = resultMap.getCell(activeCellCoords.first, activeCellCoords.second);
+                        resultMap.seenListener = null;
+                        state.isDead = false;
+                        return reconstructPath(state.path, activeCell, initPos, parentMap);
+                    }
+                    activeCell = nextActiveCell;
                     // interact with next cell
-                    resultMap.visitCell(activeCellCoords, perception);
-                    if (isActorDead(activeCell, hasCloak)) {
+                    resultMap.visitCell(activeCell, perception);
+                    if (isActorDead(resultMap, activeCell, hasCloak)) {
                         // game over
-                        Vector<Pair<Integer, Integer>> path = reconstructPath(activeCellCoords, initPos, parentMap);
-                        Vector<Object> result = new Vector<>();
-                        result.add(true);
-                        result.add(path);
-                        result.add(resultMap);
-                        return result;
+                        resultMap.seenListener = null;
+                        state.isDead = true;
+                        return reconstructPath(state.path, activeCell, initPos, parentMap);
                     }
                 }
 
                 // success
-                Vector<Pair<Integer, Integer>> path = reconstructPath(activeCellCoords, initPos, parentMap);
-                Vector<Object> result = new Vector<>();
-                result.add(false);
-                result.add(path);
-                result.add(resultMap);
-                return result;
+                resultMap.seenListener = null;
+                state.isDead = false;
+                return reconstructPath(state.path, activeCell, initPos, parentMap);
             }
 
-            private Vector<Pair<Integer, Integer>> reconstructPath(Pair<Integer, Integer> endPos,
-                                                                   Pair<Integer, Integer> initPos,
-                                                                   Vector<Vector<Pair<Integer, Integer>>> parentMap) {
-                Vector<Pair<Integer, Integer>> reversedPath = new Vector<>();
-                reversedPath.add(endPos.clone());
-                Pair<Integer, Integer> currentPos = endPos;
-                while (!currentPos.equals(initPos)) {
-                    currentPos = parentMap.elementAt(currentPos.second).elementAt(currentPos.first);
-                    reversedPath.add(currentPos.clone());
-                }
-                Vector<Pair<Integer, Integer>> path = new Vector<>();
-                for (int i = reversedPath.size() - 1; i >= 0; i--) {
-                    path.add(reversedPath.elementAt(i));
+            IntList reconstructPath(IntList path, int endPos, int initPos, int[] parentMap) {
+                path.clear();
+                path.add(endPos);
+                int currentPos = endPos;
+                while (currentPos != initPos) {
+                    currentPos = parentMap[currentPos];
+                    path.add(currentPos);
                 }
+                path.reverse();
                 return path;
             }
 
-            private boolean isActorDead(Map.Cell currentCell, boolean hasCloak) {
-                return (currentCell.contains(FILCH) || currentCell.contains(CAT) ||
-                       (!hasCloak && currentCell.isUnderPerception));
-            }
-
-            private void calculateHeuristics(Pair<Integer, Integer> goalCoords, Map map) {
-                for (int y = 0; y < map.sizeY; y++) {
-                    for (int x = 0; x < map.sizeX; x++) {
-                        int dx = abs(x - (int) goalCoords.first);
-                        int dy = abs(y - (int) goalCoords.second);
-                        int h = max(dx, dy);
-                        map.getCell(x, y).heuristics = h;
-                    }
-                }
-            }
-
-            private Pair<Integer, Integer> popNextActiveCellCoords(Vector<Pair<Integer, Integer>> activeCellsCoords,
-                                                                   Map map, boolean hasCloak) {
-                // return null if it is there is no active cells
-                // otherwise return coordinates of active cell with min score that guaranteed to be safe, otherwise -
-                // the cell that is undiscovered
-                if (activeCellsCoords.size() == 0) {
-                    return null;
-                }
-                int minSeenI = -1;
-                Pair<Integer, Integer> nextSeenActiveCellCoords = null;
-                int minSeenScore = Map.Cell.INFINITELY_FAR;
-                int minNotSeenI = -1;
-                Pair<Integer, Integer> nextNotSeenActiveCellCoords = null;
-                int minNotSeenScore = Map.Cell.INFINITELY_FAR;
-                for (int i = 0; i < activeCellsCoords.size(); i++) {
-                    Pair<Integer, Integer> activeCellCoords = activeCellsCoords.elementAt(i);
-                    Map.Cell activeCell = map.getCell(activeCellCoords.first, activeCellCoords.second);
-                    if (activeCell.isSeen) {
-                        if (!(activeCell.contains(FILCH) || activeCell.contains(CAT)) &&
-                            !(!hasCloak && activeCell.isUnderPerception) &&
-                            activeCell.score() < minSeenScore) {
-                            minSeenScore = activeCell.score();
-                            minSeenI = i;
-                            nextSeenActiveCellCoords = activeCellCoords;
-                        }
-                    }
-                    else {
-                        if (activeCell.score() < minNotSeenScore) {
-                            minNotSeenScore = activeCell.score();
-                            minNotSeenI = i;
-                            nextNotSeenActiveCellCoords = activeCellCoords;
-                        }
-                    }
+            private static boolean isActorDead(Map map, int currentCell, boolean hasCloak) {
+                return map.isDeadly(currentCell, hasCloak);
+            }
+
+            /**
+             * SearchState keeps the structures of the searches: distances and
+             * parents of the cells and the open set. The structures are
+             * allocated once per thread and reused by the solves of the maps
+             * that fit them. The distance of the cell is set only if its stamp
+             * is the generation of the current search, so a search starts with
+             * the increment of the generation instead of the reset of the
+             * cells, and a short search on a large map does not pay for the
+             * whole map. The structures may keep several layers of the cells,
+             * see {@link OpenSet}.
+             */
+            private static class SearchState {
+                final int[] distances;
+                final int[] stamps;
+                final int[] parentMap;
+                final OpenSet activeCells;
+                int generation = 0;
+                // path found by the last search and if the actor died at its end
+                final IntList path = new IntList();
+                boolean isDead;
+
+                SearchState(Map map) {
+                    this(map, 1);
                 }
-                if (nextSeenActiveCellCoords != null) {
-                    activeCellsCoords.remove(minSeenI);
-                    return nextSeenActiveCellCoords;
+
+                SearchState(Map map, int layersNumber) {
+                    int cellsNumber = layersNumber * map.sizeX * map.sizeY;
+                    this.distances = new int[cellsNumber];
+                    this.stamps = new int[cellsNumber];
+                    this.parentMap = new int[cellsNumber];
+                    this.activeCells = new OpenSet(map, layersNumber);
                 }
-                else if(nextNotSeenActiveCellCoords != null) {
-                    activeCellsCoords.remove(minNotSeenI);
-                    return nextNotSeenActiveCellCoords;
+
+                boolean fits(Map map) {
+                    return activeCells.fits(map);
                 }
-                return null;
-            }
-        }
 
-        /**
-         * BacktrackingSolver encapsulates methods for solving Book Finding
-         * problem using Backtracking path finding algorithm. This
-         * implementation uses classical backtracking enhanced with heuristic
-         * on max(dx, dy) from target.
-         */
-        public static class BacktrackingSolver implements Solver {
+                /**
+                 * Attaches the structures to the given map, which must fit
+                 * them.
+                 */
+                void bind(Map map) {
+                    activeCells.bind(map);
+                }
 
-            /**
-             * Solves Book Finding problem using Backtracking path finding
-             * algorithm enhanced with heuristics.
-             */
-            @Override
-            public Vector<Object> solve(Map initMap, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
-                                        int perception) {
-                // Output: [String name, boolean isSuccess, \
-                // Vector<Pair<Integer, Integer>> path, Long spentTimeNs]
+                /**
+                 * Forgets the cells of the previous search and prepares the
+                 * structures for the new one.
+                 */
+                void reset(boolean hasCloak) {
+                    if (++generation == 0) {
+                        // the generation wrapped around, so the stale stamps could look current
+                        Arrays.fill(stamps, 0);
+                        generation = 1;
+                    }
+                    activeCells.reset(hasCloak);
+                }
 
-                Instant previous = Instant.now();
+                int distance(int cell) {
+                    return stamps[cell] == generation ? distances[cell] : Map.Cell.INFINITELY_FAR;
+                }
 
-                // init map
-                Map map = initMap.clone();
-                map.calculateHeuristics(exitPos);
+                void setDistance(int cell, int distance, int parent) {
+                    distances[cell] = distance;
+                    stamps[cell] = generation;
+                    parentMap[cell] = parent;
+                }
+            }
 
-                // try to discovery book or cloak from init
-                Vector<Object> objsToFind = new Vector<>();
-                objsToFind.add(CLOAK);
-                objsToFind.add(BOOK);
-                Vector<Object> isDead_path_resultMap = findPathToObj(objsToFind, initActorPos, map,
-                                                            false, perception);
-                Vector<Pair<Integer, Integer>> pathToCloakOrBook =
-                        (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                map = (Map) isDead_path_resultMap.elementAt(2);
-                Pair<Integer, Integer> objCoords = pathToCloakOrBook.lastElement();
-
-                if (map.getCell(objCoords).contains(CLOAK)) {
-                    // find optimal path to cloak from init
-                    isDead_path_resultMap = findPathToCoords(objCoords, initActorPos, map, false, perception);
-                    pathToCloakOrBook = (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
+            /**
+             * OpenSet keeps the cells that could make further optimal path in
+             * two indexed heaps ordered by score: cells that are seen and
+             * guaranteed to be safe, and cells that are not seen yet. Seen
+             * cells are always preferred. Seen cells that lead to death are
+             * never returned, so they are not stored at all. The open set
+             * listens to the map and moves cells between the heaps as soon as
+             * they become seen.
+             * <p>
+             * The open set may keep several layers of the cells, see {@link
+             * LayeredAStarSolver}: the id of the cell of the layer l is
+             * l * cellsNumber + index of the cell, and the actor has the cloak
+             * on the layers with {@link LayeredAStarSolver#CLOAK_LAYER} bit.
+             */
+            private static class OpenSet implements Map.SeenListener {
+                private Map map;
+                private int cellsNumber;
+                private final int layersNumber;
+                private boolean hasCloak;
+                private final IndexedHeap seenCells;
+                private final IndexedHeap notSeenCells;
+                private int nextOrder = 0;
+
+                OpenSet(Map map) {
+                    this(map, 1);
+                }
 
-                    // try to discovery book from init, cloak
-                    objsToFind = new Vector<>();
-                    objsToFind.add(BOOK);
-                    isDead_path_resultMap = findPathToObj(objsToFind, objCoords, map, true, perception);
-                    Vector<Pair<Integer, Integer>> pathCloakToBook =
-                            (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
-                    Pair<Integer, Integer> prevObjCoords = objCoords;
-                    objCoords = pathCloakToBook.lastElement();
-
-                    if (map.getCell(objCoords).contains(BOOK)) {
-                        // find optimal path to book from init, cloak
-                        isDead_path_resultMap =
-                                findPathToCoords(objCoords, prevObjCoords, map, true, perception);
-                        pathCloakToBook = (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                        map = (Map) isDead_path_resultMap.elementAt(2);
+                OpenSet(Map map, int layersNumber) {
+                    this.map = map;
+                    this.cellsNumber = map.sizeX * map.sizeY;
+                    this.layersNumber = layersNumber;
+                    this.seenCells = new IndexedHeap(layersNumber * cellsNumber);
+                    this.notSeenCells = new IndexedHeap(layersNumber * cellsNumber);
+                }
 
-                        // find optimal path to exit from init, cloak, book
-                        prevObjCoords = objCoords;
-                        objCoords = exitPos;
-                        isDead_path_resultMap =
-                                findPathToCoords(objCoords, prevObjCoords, map, true, perception);
-                        Vector<Pair<Integer, Integer>> pathCloakBookToExit =
-                                (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-
-                        if (map.getCell(pathCloakBookToExit.lastElement()).contains(EXIT)) {
-                            // init, cloak, book, exit
-                            Instant current = Instant.now();
-                            Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                            Vector<Pair<Integer, Integer>> path = new Vector<>();
-                            path.addAll(pathToCloakOrBook);
-                            pathCloakToBook.remove(0);
-                            path.addAll(pathCloakToBook);
-                            pathCloakBookToExit.remove(0);
-                            path.addAll(pathCloakBookToExit);
-
-                            Vector<Object> result = new Vector<>();
-                            result.add("Backtracking");
-                            result.add(true);
-                            result.add(path);
-                            result.add(spentTimeNs);
-                            return result;
-                        }
+                /**
+                 * Returns if the open set has room for all the cells of the
+                 * given map.
+                 */
+                boolean fits(Map map) {
+                    return layersNumber * map.sizeX * map.sizeY <= seenCells.capacity();
+                }
 
-                        // init, cloak, book, death or no way
-                        Instant current = Instant.now();
-                        Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
+                /**
+                 * Attaches the open set to the given map, which must fit it,
+                 * and removes all the cells.
+                 */
+                void bind(Map map) {
+                    this.map = map;
+                    this.cellsNumber = map.sizeX * map.sizeY;
+                    reset(hasCloak);
+                }
 
-                        Vector<Pair<Integer, Integer>> path = new Vector<>();
-                        path.addAll(pathToCloakOrBook);
-                        pathCloakToBook.remove(0);
-                        path.addAll(pathCloakToBook);
-                        pathCloakBookToExit.remove(0);
-                        path.addAll(pathCloakBookToExit);
+                /**
+                 * Removes all the cells from the open set and prepares it for
+                 * the new search.
+                 */
+                void reset(boolean hasCloak) {
+                    this.hasCloak = hasCloak;
+                    seenCells.clear();
+                    notSeenCells.clear();
+                    nextOrder = 0;
+                }
 
-                        Vector<Object> result = new Vector<>();
-                        result.add("Backtracking");
-                        result.add(false);
-                        result.add(path);
-                        result.add(spentTimeNs);
-                        return result;
+                /**
+                 * Adds the cell with the given score to the open set or updates
+                 * its score if it is already there. The cell keeps its
+                 * insertion order on update, so that the cells with equal
+                 * scores are returned in the order they were added.
+                 */
+                void add(int id, int score) {
+                    long order;
+                    if (seenCells.contains(id)) {
+                        order = seenCells.key(id) & 0xFFFFFFFFL;
                     }
+                    else if (notSeenCells.contains(id)) {
+                        order = notSeenCells.key(id) & 0xFFFFFFFFL;
+                    }
+                    else {
+                        order = nextOrder++;
+                    }
+                    long key = ((long) score << 32) | order;
+                    if (!map.hasFlag(id < cellsNumber ? id : id % cellsNumber, Map.SEEN)) {
+                        notSeenCells.push(id, key);
+                    }
+                    else if (!isDead(id)) {
+                        seenCells.push(id, key);
+                    }
+                }
 
-                    // init, cloak, death or no way
-                    Instant current = Instant.now();
-                    Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                    Vector<Pair<Integer, Integer>> path = new Vector<>();
-                    path.addAll(pathToCloakOrBook);
-                    pathCloakToBook.remove(0);
-                    path.addAll(pathCloakToBook);
-
-                    Vector<Object> result = new Vector<>();
-                    result.add("Backtracking");
-                    result.add(false);
-                    result.add(path);
-                    result.add(spentTimeNs);
-                    return result;
+                private boolean isDead(int id) {
+                    if (id < cellsNumber) {
+                        return isActorDead(map, id, hasCloak);
+                    }
+                    return isActorDead(map, id % cellsNumber,
+                                       hasCloak || ((id / cellsNumber) & LayeredAStarSolver.CLOAK_LAYER) != 0);
                 }
-                else if (map.getCell(objCoords).contains(BOOK)) {
-                    // find optimal path to book from init
-                    isDead_path_resultMap = findPathToCoords(objCoords, initActorPos, map, false, perception);
-                    pathToCloakOrBook = (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
 
-                    // try to discovery cloak or exit from book
-                    objsToFind = new Vector<>();
-                    objsToFind.add(CLOAK);
-                    objsToFind.add(EXIT);
-                    isDead_path_resultMap = findPathToObj(objsToFind, objCoords, map,
-                            false, perception);
-                    Vector<Pair<Integer, Integer>> pathBookToCloakOrExit =
-                            (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                    map = (Map) isDead_path_resultMap.elementAt(2);
-                    Pair<Integer, Integer> prevObjCoords = objCoords;
-                    objCoords = pathBookToCloakOrExit.lastElement();
-
-                    if (map.getCell(objCoords).contains(CLOAK)) {
-                        // find optimal path to cloak from book
-                        isDead_path_resultMap =
-                                findPathToCoords(objCoords, prevObjCoords, map, false, perception);
-                        pathBookToCloakOrExit =
-                                (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-                        map = (Map) isDead_path_resultMap.elementAt(2);
+                /**
+                 * Returns index of the seen and safe cell with min score,
+                 * otherwise - of the not seen cell with min score, otherwise
+                 * {@link Map#NO_INDEX}. The returned cell is removed from the
+                 * open set.
+                 */
+                int pop() {
+                    if (!seenCells.isEmpty()) {
+                        return seenCells.pop();
+                    }
+                    else if (!notSeenCells.isEmpty()) {
+                        return notSeenCells.pop();
+                    }
+                    return Map.NO_INDEX;
+                }
 
-                        // find optimal path to exit from book, cloak
-                        prevObjCoords = objCoords;
-                        objCoords = exitPos;
-                        isDead_path_resultMap =
-                                findPathToCoords(objCoords, prevObjCoords, map, true, perception);
-                        Vector<Pair<Integer, Integer>> pathBookCloakToExit =
-                                (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-
-                        if (map.getCell(pathBookCloakToExit.lastElement()).contains(EXIT)) {
-                            // init, book, cloak, exit
-                            Instant current = Instant.now();
-                            Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                            Vector<Pair<Integer, Integer>> path = new Vector<>();
-                            path.addAll(pathToCloakOrBook);
-                            pathBookToCloakOrExit.remove(0);
-                            path.addAll(pathBookToCloakOrExit);
-                            pathBookCloakToExit.remove(0);
-                            path.addAll(pathBookCloakToExit);
-
-                            Vector<Object> result = new Vector<>();
-                            result.add("Backtracking");
-                            result.add(true);
-                            result.add(path);
-                            result.add(spentTimeNs);
-                            return result;
+                @Override
+                public void onCellSeen(int x, int y) {
+                    for (int id = map.index(x, y); id < layersNumber * cellsNumber; id += cellsNumber) {
+                        if (notSeenCells.contains(id)) {
+                            long key = notSeenCells.key(id);
+                            notSeenCells.remove(id);
+                            if (!isDead(id)) {
+                                seenCells.push(id, key);
+                            }
                         }
-
-                        // init, book, cloak, death or no way
-                        Instant current = Instant.now();
-                        Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                        Vector<Pair<Integer, Integer>> path = new Vector<>();
-                        path.addAll(pathToCloakOrBook);
-                        pathBookToCloakOrExit.remove(0);
-                        path.addAll(pathBookToCloakOrExit);
-                        pathBookCloakToExit.remove(0);
-                        path.addAll(pathBookCloakToExit);
-
-                        Vector<Object> result = new Vector<>();
-                        result.add("Backtracking");
-                        result.add(false);
-                        result.add(path);
-                        result.add(spentTimeNs);
-                        return result;
-                    }
-                    else if (map.getCell(objCoords).contains(EXIT)) {
-                        // find optimal path to exit from book
-                        isDead_path_resultMap =
-                                findPathToCoords(objCoords, prevObjCoords, map, false, perception);
-                        pathBookToCloakOrExit =
-                                (Vector<Pair<Integer, Integer>>) isDead_path_resultMap.elementAt(1);
-
-                        // init, book, exit
-                        Instant current = Instant.now();
-                        Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                        Vector<Pair<Integer, Integer>> path = new Vector<>();
-                        path.addAll(pathToCloakOrBook);
-                        pathBookToCloakOrExit.remove(0);
-                        path.addAll(pathBookToCloakOrExit);
-
-                        Vector<Object> result = new Vector<>();
-                        result.add("Backtracking");
-                        result.add(true);
-                        result.add(path);
-                        result.add(spentTimeNs);
-                        return result;
                     }
-
-                    // init, book, death or no way
-                    Instant current = Instant.now();
-                    Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                    Vector<Pair<Integer, Integer>> path = new Vector<>();
-                    path.addAll(pathToCloakOrBook);
-                    pathBookToCloakOrExit.remove(0);
-                    path.addAll(pathBookToCloakOrExit);
-
-                    Vector<Object> result = new Vector<>();
-                    result.add("Backtracking");
-                    result.add(false);
-                    result.add(path);
-                    result.add(spentTimeNs);
-                    return result;
                 }
+            }
+        }
 
-                // init, death or no way
-                Instant current = Instant.now();
-                Long spentTimeNs = ChronoUnit.NANOS.between(previous, current);
-
-                Vector<Object> result = new Vector<>();
-                result.add("Backtracking");
-                result.add(false);
-                result.add(pathToCloakOrBook);
-                result.add(spentTimeNs);
-                return result;
+        /**
+         * JumpPointSolver encapsulates methods for solving Book Finding
+         * problem using Jump Point Search, the A* that skips the symmetric
+         * paths of the uniform-cost 8-connected grid. Instead of all the
+         * neighbors, the cell expands the jumps: straight and diagonal runs
+         * over the known part of the map that stop only at the cells where
+         * the path may turn, i.e. next to the cells that lead to death or are
+         * not seen yet, and at the objects. The cells that are not seen yet
+         * are boundaries too: the jump stops at the frontier cell, that has
+         * not seen cells around, and at the not seen cell, so the unknown part
+         * of the map is discovered cell by cell the same way as in {@link
+         * AStarSolver}. The not seen cell expands in all the directions,
+         * because nothing was known around it when it was reached. The skipped
+         * cells have nothing to discover around, so the outcome of the game
+         * follows {@link AStarSolver}, and the legs differ only where the ties
+         * of equal scores are broken in another order.
+         */
+        public static class JumpPointSolver extends AStarSolver {
+
+            /**
+             * Constructor initializes algorithm-specific information.
+             *
+             * @param stepSize cost of the step to measure the total cost of
+             *                 the cell. Affects the choice of cell for the
+             *                 next step.
+             */
+            public JumpPointSolver(int stepSize) {
+                super(stepSize, "JPS");
             }
 
-            private Vector<Object> findPathToObj(Vector<Object> objsToFind, Pair<Integer, Integer> initPos, Map map,
-                                                 boolean hasCloak, int perception) {
-                // returns [boolean isDead, Vector<Pair<Integer, Integer>> path, Map resultMap]
-                return findPathToObjOrCoords(objsToFind, null, initPos, map, hasCloak, perception,
-                        false);
-            }
-
-            private Pair<Integer, Integer> chooseNextCellCoords(Pair<Integer, Integer> currentPos, Map map,
-                                                                boolean hasCloak, Vector<Vector<Boolean>> isVisited,
-                                                                boolean considerUnsafeCells) {
-                // return safest and closest to dest unvisited cell from neighborhood, if all the neighbors are visited
-                // or guaranteed lead to die, then null is returned
-
-                Vector<Pair<Integer, Integer>> safeCellsCoords = new Vector<>();
-                Vector<Pair<Integer, Integer>> unknownCellsCoords = new Vector<>();
-                Vector<Pair<Integer, Integer>> unsafeCellsCoords = new Vector<>();
-                for (int y = currentPos.second - 1; y <= currentPos.second + 1 && y < map.sizeY; y++) {
-                    if (y >= 0) {
-                        for (int x = currentPos.first - 1; x <= currentPos.first + 1 && x < map.sizeX; x++) {
-                            if (x >= 0 && !(x == currentPos.first && y == currentPos.second)) {
-                                if (!isVisited.elementAt(y).elementAt(x)) {
-                                    Map.Cell cell = map.getCell(x, y);
-                                    Pair<Integer, Integer> cellPos = new Pair<>(x, y);
-                                    if (cell.isSeen) {
-                                        if (cell.isUnderPerception) {
-                                            if (hasCloak) {
-                                                if (cell.isBorderPerception || cell.isVisited) {
-                                                    safeCellsCoords.add(cellPos);
-                                                }
-                                                else {
-                                                    unsafeCellsCoords.add(cellPos);
-                                                }
-                                            }
-                                        }
-                                        else {
-                                            safeCellsCoords.add(cellPos);
-                                        }
-                                    }
-                                    else {
-                                        unknownCellsCoords.add(cellPos);
-                                    }
+            @Override
+            IntList findPath(AStarSolver.SearchState state, Map map, int initPos, int objsToFind, boolean hasCloak,
+                             int perception) {
+                // returns the path to first found obj from objsToFind, valid until the next search, state.isDead
+                // tells if the actor died at its end
+                // the map is changed in place with the new knowledge of the actor
+
+                state.reset(hasCloak);
+                state.setDistance(initPos, 0, Map.NO_INDEX);
+                int[] parentMap = state.parentMap;
+
+                // create a container with jump points that could make further optimal path
+                AStarSolver.OpenSet activeCells = state.activeCells;
+                activeCells.add(initPos, map.heuristics(initPos));
+                map.seenListener = activeCells;
+                SolverMetrics metrics = map.metrics;
+                // the cells with not seen cells in this zone are on the frontier of the known part of the map
+                Map.Stencil frontierZone = Map.Stencil.chebyshev(max(Map.Stencil.perception(perception).radius, 1));
+
+                int lastCell = initPos;
+                state.isDead = false;
+                int activeCell;
+                while ((activeCell = activeCells.pop()) != Map.NO_INDEX) {
+                    if (metrics != null) {
+                        metrics.increment(SolverMetrics.Counter.OPEN_SET_POPS);
+                    }
+                    lastCell = activeCell;
+                    int parent = parentMap[activeCell];
+                    int x = map.toX(activeCell);
+                    int y = map.toY(activeCell);
+                    boolean isDiscovered = !map.hasFlag(activeCell, Map.SEEN);
+                    // interact with cell
+                    map.visitCell(activeCell, perception);
+                    if (AStarSolver.isActorDead(map, activeCell, hasCloak)) {
+                        // game over
+                        state.isDead = true;
+                        break;
+                    }
+                    if (map.containsAny(activeCell, objsToFind)) {
+                        // success
+                        break;
+                    }
+                    if (metrics != null) {
+                        metrics.increment(SolverMetrics.Counter.EXPANSIONS);
+                    }
+
+                    // jump to the next jump points and update activeCells
+                    if (parent == Map.NO_INDEX || isDiscovered) {
+                        for (int dy = -1; dy <= 1; dy++) {
+                            for (int dx = -1; dx <= 1; dx++) {
+                                if (dx != 0 || dy != 0) {
+                                    addJumpPoint(state, map, activeCell, x, y, dx, dy, objsToFind, hasCloak,
+                                                 frontierZone);
                                 }
                             }
                         }
+                        continue;
                     }
-                }
-                Vector<Pair<Integer, Integer>> interestingCells = null;
-                if (safeCellsCoords.size() > 0) {
-                    interestingCells = safeCellsCoords;
-                }
-                else if (unknownCellsCoords.size() > 0) {
-                    interestingCells = unknownCellsCoords;
-                }
-                else if (unsafeCellsCoords.size() > 0 && considerUnsafeCells) {
-                    interestingCells = unsafeCellsCoords;
-                }
-                if (interestingCells != null) {
-                    Pair<Integer, Integer> minCellPos = interestingCells.elementAt(0);
-                    int minCellCost = map.getCell(minCellPos).score();
-                    for (int i = 1; i < interestingCells.size(); i++) {
-                        Pair<Integer, Integer> cellPos = interestingCells.elementAt(i);
-                        Map.Cell cell = map.getCell(cellPos);
-                        int cellCost = cell.score();
-                        if (cellCost < minCellCost) {
-                            minCellPos = cellPos;
-                            minCellCost = cellCost;
+                    // the directions that are not pruned: natural and forced by the cells that lead to death
+                    int dx = Integer.signum(x - map.toX(parent));
+                    int dy = Integer.signum(y - map.toY(parent));
+                    addJumpPoint(state, map, activeCell, x, y, dx, dy, objsToFind, hasCloak, frontierZone);
+                    if (dx != 0 && dy != 0) {
+                        addJumpPoint(state, map, activeCell, x, y, dx, 0, objsToFind, hasCloak, frontierZone);
+                        addJumpPoint(state, map, activeCell, x, y, 0, dy, objsToFind, hasCloak, frontierZone);
+                        if (isBlocked(map, x - dx, y, hasCloak)) {
+                            addJumpPoint(state, map, activeCell, x, y, -dx, dy, objsToFind, hasCloak, frontierZone);
+                        }
+                        if (isBlocked(map, x, y - dy, hasCloak)) {
+                            addJumpPoint(state, map, activeCell, x, y, dx, -dy, objsToFind, hasCloak, frontierZone);
+                        }
+                    }
+                    else if (dx != 0) {
+                        for (int side = -1; side <= 1; side += 2) {
+                            if (isBlocked(map, x, y + side, hasCloak)) {
+                                addJumpPoint(state, map, activeCell, x, y, dx, side, objsToFind, hasCloak,
+                                             frontierZone);
+                            }
+                        }
+                    }
+                    else {
+                        for (int side = -1; side <= 1; side += 2) {
+                            if (isBlocked(map, x + side, y, hasCloak)) {
+                                addJumpPoint(state, map, activeCell, x, y, side, dy, objsToFind, hasCloak,
+                                             frontierZone);
+                            }
                         }
                     }
-                    return minCellPos;
                 }
-                return null;
+                map.seenListener = null;
+                return reconstructJumpPath(state, map, lastCell, initPos);
             }
 
-            private boolean isActorDead(Map.Cell currentCell, boolean hasCloak) {
-                return (currentCell.contains(FILCH) || currentCell.contains(CAT) ||
-                        (!hasCloak && currentCell.isUnderPerception));
+            private void addJumpPoint(AStarSolver.SearchState state, Map map, int activeCell, int x, int y, int dx,
+                                      int dy, int objsToFind, boolean hasCloak, Map.Stencil frontierZone) {
+                int jumpPoint = jump(map, x, y, dx, dy, objsToFind, hasCloak, frontierZone);
+                if (jumpPoint == Map.NO_INDEX) {
+                    return;
+                }
+                int jumpX = map.toX(jumpPoint);
+                int jumpY = map.toY(jumpPoint);
+                int potentialDist = state.distance(activeCell) + max(abs(jumpX - x), abs(jumpY - y)) * stepSize;
+                if (potentialDist < state.distance(jumpPoint)) {
+                    state.setDistance(jumpPoint, potentialDist, activeCell);
+                    state.activeCells.add(jumpPoint, potentialDist + map.heuristics(jumpX, jumpY));
+                    if (map.metrics != null) {
+                        map.metrics.increment(SolverMetrics.Counter.RELAXATIONS);
+                    }
+                }
             }
 
-            private Vector<Object> findPathToCoords(Pair<Integer, Integer> destPos,
-                                                                    Pair<Integer, Integer> initPos, Map map,
-                                                                    boolean hasCloak, int perception) {
-                // return [boolean isDead, Vector<Pair<Integer, Integer>> path, Map resultMap]
-                return findPathToObjOrCoords(null, destPos, initPos, map, hasCloak, perception,
-                               false);
+            private static int jump(Map map, int x, int y, int dx, int dy, int objsToFind, boolean hasCloak,
+                                    Map.Stencil frontierZone) {
+                // returns the next jump point from the cell in the direction or Map.NO_INDEX if there is none
+                while (true) {
+                    x += dx;
+                    y += dy;
+                    if (x < 0 || x >= map.sizeX || y < 0 || y >= map.sizeY) {
+                        return Map.NO_INDEX;
+                    }
+                    int cell = map.index(x, y);
+                    if ((map.flags[cell] & Map.SEEN) == 0 || map.containsAny(cell, objsToFind)) {
+                        // the cell is to be discovered or is the target
+                        return cell;
+                    }
+                    if (AStarSolver.isActorDead(map, cell, hasCloak)) {
+                        return Map.NO_INDEX;
+                    }
+                    if (isFrontier(map, x, y, frontierZone)) {
+                        return cell;
+                    }
+                    if (dx != 0 && dy != 0) {
+                        if (isForced(map, x - dx, y, x - dx, y + dy, hasCloak) ||
+                            isForced(map, x, y - dy, x + dx, y - dy, hasCloak) ||
+                            jump(map, x, y, dx, 0, objsToFind, hasCloak, frontierZone) != Map.NO_INDEX ||
+                            jump(map, x, y, 0, dy, objsToFind, hasCloak, frontierZone) != Map.NO_INDEX) {
+                            return cell;
+                        }
+                    }
+                    else if (dx != 0) {
+                        if (isForced(map, x, y + 1, x + dx, y + 1, hasCloak) ||
+                            isForced(map, x, y - 1, x + dx, y - 1, hasCloak)) {
+                            return cell;
+                        }
+                    }
+                    else if (isForced(map, x + 1, y, x + 1, y + dy, hasCloak) ||
+                             isForced(map, x - 1, y, x - 1, y + dy, hasCloak)) {
+                        return cell;
+                    }
+                }
             }
 
-            private Vector<Object> findPathToObjOrCoords(Vector<Object> objsToFind, Pair<Integer, Integer> destPos,
-                                                         Pair<Integer, Integer> initPos, Map map, boolean hasCloak,
-                                                         int perception, boolean visitUnsafeCells) {
-                // returns [boolean isDead, Vector<Pair<Integer, Integer>> path, Map resultMap]
-
-                if (objsToFind == null) {
-                    objsToFind = new Vector<>();
+            private static boolean isForced(Map map, int blockedX, int blockedY, int forcedX, int forcedY,
+                                            boolean hasCloak) {
+                // the neighbor is forced if the cell beside the jump is blocked and the cell behind it is not a
+                // seen cell that leads to death
+                if (!isBlocked(map, blockedX, blockedY, hasCloak) ||
+                    forcedX < 0 || forcedX >= map.sizeX || forcedY < 0 || forcedY >= map.sizeY) {
+                    return false;
                 }
+                int forcedCell = map.index(forcedX, forcedY);
+                return (map.flags[forcedCell] & Map.SEEN) == 0 || !AStarSolver.isActorDead(map, forcedCell, hasCloak);
+            }
 
-                Map resultMap = map.clone();
-                if (destPos != null) {
-                    resultMap.calculateHeuristics(destPos);
-                }
-                Vector<Vector<Boolean>> isVisited = new Vector<>();
-                for (int y = 0; y < resultMap.sizeY; y++) {
-                    Vector<Boolean> mapRow = new Vector<>();
-                    for (int x = 0; x < resultMap.sizeX; x++) {
-                        mapRow.add(false);
-                    }
-                    isVisited.add(mapRow);
-                }
-                isVisited.elementAt(initPos.second).setElementAt(true, initPos.first);
-                Vector<Pair<Integer, Integer>> path = new Vector<>();
-                path.add(initPos);
-                Map.Cell activeCell = resultMap.getCell(initPos);
-                Pair<Integer, Integer> activeCellPos = path.lastElement();
-                // interact with cell
-                resultMap.visitCell(initPos, perception);
-                if (isActorDead(activeCell, hasCloak)) {
-                    // game over
-                    Vector<Object> result = new Vector<>();
-                    result.add(true);
-                    result.add(path);
-                    result.add(resultMap);
-                    return result;
+            private static boolean isBlocked(Map map, int x, int y, boolean hasCloak) {
+                // returns if the cell is not seen or leads to death, the cells outside of the map are not blocked
+                // the not seen cell blocks too: A* takes all the seen safe cells before it, so the path over it
+                // does not replace the path over the jump
+                if (x < 0 || x >= map.sizeX || y < 0 || y >= map.sizeY) {
+                    return false;
                 }
+                int cell = map.index(x, y);
+                return (map.flags[cell] & Map.SEEN) == 0 || AStarSolver.isActorDead(map, cell, hasCloak);
+            }
 
-                while (!activeCell.contains(objsToFind) && !activeCellPos.equals(destPos)) {
-                    // choose next cell
-                    Pair<Integer, Integer> nextActiveCellPos =
-                            chooseNextCellCoords(activeCellPos, resultMap, hasCloak, isVisited, visitUnsafeCells);
-                    if (nextActiveCellPos == null) {
-                        // no more steps possible from active cell
-                        if (path.size() > 1) {
-                            path.removeElementAt(path.size() - 1);
-                            activeCellPos = path.lastElement();
-                            activeCell = resultMap.getCell(activeCellPos);
-                            continue;
-                        }
-                        // no more steps are possible at all
-                        if (hasCloak && !visitUnsafeCells) {
-                            // try to find ignoring risks
-                            return findPathToObjOrCoords(objsToFind, destPos, initPos, resultMap, hasCloak, perception,
-                                    true);
-                        }
-                        Vector<Object> result = new Vector<>();
-                        result.add(false);
-                        result.add(path);
-                        result.add(resultMap);
-                        return result;
-                    }
-                    activeCellPos = nextActiveCellPos;
-                    activeCell = resultMap.getCell(activeCellPos);
-                    path.add(activeCellPos);
-                    // interact with next cell
-                    resultMap.visitCell(activeCellPos, perception);
-                    isVisited.elementAt(activeCellPos.second).setElementAt(true, activeCellPos.first);
-                    if (isActorDead(activeCell, hasCloak)) {
-                        // game over
-                        Vector<Object> result = new Vector<>();
-                        result.add(true);
-                        result.add(path);
-                        result.add(resultMap);
-                        return result;
+            private static boolean isFrontier(Map map, int x, int y, Map.Stencil frontierZone) {
+                // returns if there are not seen cells in the zone around the cell
+                int[] cells = frontierZone.cells;
+                for (int cell = 0; cell < cells.length; cell += 2) {
+                    int x_ = x + cells[cell];
+                    int y_ = y + cells[cell + 1];
+                    if (x_ >= 0 && x_ < map.sizeX && y_ >= 0 && y_ < map.sizeY &&
+                        (map.flags[map.index(x_, y_)] & Map.SEEN) == 0) {
+                        return true;
                     }
                 }
+                return false;
+            }
 
-                // success
-                Vector<Object> result = new Vector<>();
-                result.add(false);
-                result.add(path);
-                result.add(resultMap);
-                return result;
+            private static IntList reconstructJumpPath(AStarSolver.SearchState state, Map map, int endPos,
+                                                       int initPos) {
+                IntList path = state.path;
+                path.clear();
+                path.add(endPos);
+                int currentPos = endPos;
+                while (currentPos != initPos) {
+                    // add the cells of the jump from the parent
+                    int parentPos = state.parentMap[currentPos];
+                    int dx = Integer.signum(map.toX(parentPos) - map.toX(currentPos));
+                    int dy = Integer.signum(map.toY(parentPos) - map.toY(currentPos));
+                    int x = map.toX(currentPos);
+                    int y = map.toY(currentPos);
+                    do {
+                        x += dx;
+                        y += dy;
+                        path.add(map.index(x, y));
+                    } while (map.index(x, y) != parentPos);
+                    currentPos = parentPos;
+                }
+                path.reverse();
+                return path;
             }
         }
 
         /**
-         * Map class describes the game space and encapsulates methods for
-         * interacting with it. Game space is a matrix of cells.
+         * HierarchicalAStarSolver encapsulates methods for solving Book
+         * Finding problem using hierarchical path finding (HPA*) on the legs
+         * to the exit. The map is split into square clusters linked by the
+         * entrances: the cells of the spans of the border that are passable
+         * on both sides. The leg is planned on the graph of the entrances
+         * first, and only the chosen corridor is refined to the cells while
+         * the actor walks it. The plan is made over the knowledge of the
+         * actor: the cells that are not seen yet are supposed to be safe and
+         * the seen cells that lead to death are blocked.
+         * <p>
+         * The distances between the entrances of the cluster are cached, and
+         * the cluster without the known danger needs no search at all, since
+         * its distances are max(dx, dy). The cache of the cluster is dropped
+         * when the walk reveals new danger in it or on its border, and the
+         * leg is replanned from the current cell when the next cell of the
+         * walk turns out to lead to death. Unlike {@link AStarSolver}, the
+         * actor discovers the map only from the walked cells. The legs to the
+         * cloak or the book, whose positions are not known, are searched as
+         * in {@link AStarSolver}.
+         * <p>
+         * The plan over the entrances is not optimal, and the walk discovers
+         * less of the map, so the legs are usually a bit longer than the legs
+         * of {@link AStarSolver}. The hierarchy is used only if the
+         * approximation is requested in the constructor, otherwise the legs
+         * to the exit are searched as in {@link AStarSolver} too.
          */
-        public static class Map {
-            Vector<Vector<Cell>> map;
+        public static class HierarchicalAStarSolver extends AStarSolver {
             /**
-             * sizeX and sizeY represent the size of the first and second
-             * dimensions of the map.
+             * Default side of the cluster in cells.
              */
-            public int sizeX, sizeY;
+            public static final int DEFAULT_CLUSTER_SIZE = 16;
+            private final int clusterSize;
+            private final boolean isApproximate;
+            // cluster graphs of every thread, reused by its next solves
+            private final ThreadLocal<ClusterGraph> clusterGraphs = new ThreadLocal<>();
 
             /**
-             * Constructor for the Map that initializes the map and sets sizeX
-             * and sizeY.
+             * Constructor initializes algorithm-specific information. The
+             * legs are the same as the legs of {@link AStarSolver}.
              *
-             * @param sizeY size of the second dimension
-             * @param sizeX size of the first dimension
+             * @param stepSize cost of the step to measure the total cost of
+             *                 the cell. Affects the choice of cell for the
+             *                 next step.
              */
-            public Map(int sizeY, int sizeX) {
-                this.sizeX = sizeX;
-                this.sizeY = sizeY;
-                this.map = new Vector<>();
-                for (int y = 0; y < sizeY; y++) {
-                    Vector<Cell> mapRow = new Vector<>();
-                    for (int x = 0; x < sizeX; x++) {
-                        mapRow.add(new Cell());
-                    }
-                    this.map.add(mapRow);
-                }
+            public HierarchicalAStarSolver(int stepSize) {
+                this(stepSize, DEFAULT_CLUSTER_SIZE, false);
             }
 
             /**
-             * Method calculate heuristic for each cell of the map by the
-             * max(dx, dy) formula. Distances dx and dy is calculated as
-             * the difference between cell coordinates and goal position.
+             * Constructor initializes algorithm-specific information.
              *
-             * @param goalCoords position of the goal
+             * @param stepSize cost of the step to measure the total cost of
+             *                 the cell. Affects the choice of cell for the
+             *                 next step.
+             * @param clusterSize side of the cluster in cells
+             * @param isApproximate if the legs to the exit are walked over
+             *                      the hierarchy, which is faster on the
+             *                      large maps, but makes the legs longer
              */
-            public void calculateHeuristics(Pair<Integer, Integer> goalCoords) {
-                for (int y = 0; y < sizeY; y++) {
-                    for (int x = 0; x < sizeX; x++) {
-                        int dx = abs(x - goalCoords.first);
-                        int dy = abs(y - goalCoords.second);
-                        getCell(x, y).heuristics = max(dx, dy);
-                    }
+            public HierarchicalAStarSolver(int stepSize, int clusterSize, boolean isApproximate) {
+                super(stepSize, isApproximate ? "Approximate HPA*" : "HPA*");
+                if (clusterSize < 1) {
+                    throw new IllegalArgumentException("Cluster size must be positive");
                 }
+                this.clusterSize = clusterSize;
+                this.isApproximate = isApproximate;
             }
 
-            /**
-             * Method adds an enemy to the map and sets the neighbor cells as
-             * under his/her perception.
-             *
-             * @param enemy enemy that stay on given position
-             * @param perception perception distance of the enemy
-             * @param x x-coordinate of the enemy position
-             * @param y y-coordinate of the enemy position
-             */
-            public void addEnemy(Object enemy, int perception, int x, int y) {
-                this.addItem(enemy, x, y);
-                for (int y_ = y - perception; y_ <= y + perception; y_++) {
-                    if (y_ >= 0 && y_ < this.sizeY) {
-                        for (int x_ = x - perception; x_ <= x + perception; x_++) {
-                            if (x_ >= 0 && x_ < this.sizeX) {
-                                this.getCell(x_, y_).isUnderPerception = true;
+            @Override
+            IntList findPath(AStarSolver.SearchState state, Map map, int initPos, int objsToFind, boolean hasCloak,
+                             int perception) {
+                // returns the path to first found obj from objsToFind, valid until the next search, state.isDead
+                // tells if the actor died at its end
+                // the map is changed in place with the new knowledge of the actor
+
+                int goal = map.getHeuristicsGoal();
+                if (!isApproximate || objsToFind != EXIT_MASK || goal == Map.NO_INDEX ||
+                    !map.containsAny(goal, EXIT_MASK) || (map.sizeX <= clusterSize && map.sizeY <= clusterSize)) {
+                    // the exact leg is requested, the leg has no single known goal or the map is a single cluster
+                    return super.findPath(state, map, initPos, objsToFind, hasCloak, perception);
+                }
+                ClusterGraph graph = clusterGraphs.get();
+                if (graph == null || !graph.fits(map)) {
+                    graph = new ClusterGraph(map, clusterSize);
+                    clusterGraphs.set(graph);
+                }
+                graph.bind(map, hasCloak, stepSize);
+
+                IntList path = state.path;
+                path.clear();
+                path.add(initPos);
+                map.seenListener = graph;
+                state.isDead = walk(graph, map, initPos, goal, hasCloak, Map.Stencil.perception(perception), path);
+                map.seenListener = null;
+                return path;
+            }
+
+            private static boolean walk(ClusterGraph graph, Map map, int initPos, int goal, boolean hasCloak,
+                                        Map.Stencil perception, IntList path) {
+                // walks the plans of the graph from initPos to goal and returns if the actor died
+                int currentCell = initPos;
+                map.visitCell(currentCell, perception);
+                if (AStarSolver.isActorDead(map, currentCell, hasCloak)) {
+                    return true;
+                }
+                IntList plan = graph.plan;
+                replan:
+                while (currentCell != goal) {
+                    if (!graph.findPlan(currentCell, goal)) {
+                        // no path over the knowledge of the actor
+                        return false;
+                    }
+                    for (int i = 1; i < plan.size(); i++) {
+                        int target = plan.get(i);
+                        graph.beginSegment(currentCell, target);
+                        while (currentCell != target) {
+                            int nextCell = graph.nextCell(currentCell, target);
+                            if (nextCell == Map.NO_INDEX || (map.hasFlag(nextCell, Map.SEEN) &&
+                                                             AStarSolver.isActorDead(map, nextCell, hasCloak))) {
+                                // the corridor is blocked by the danger revealed on the way
+                                continue replan;
+                            }
+                            currentCell = nextCell;
+                            map.visitCell(currentCell, perception);
+                            path.add(currentCell);
+                            if (AStarSolver.isActorDead(map, currentCell, hasCloak)) {
+                                return true;
                             }
                         }
                     }
                 }
+                return false;
             }
 
             /**
-             * Method adds an item to the map at the given coordinates.
-             *
-             * @param item item to be placed
-             * @param x x-coordinate of the item position
-             * @param y y-coordinate of the item position
+             * ClusterGraph keeps the abstract graph of the map: the entrances
+             * of the clusters with the cached distances between them, the
+             * structures of the search over the graph and of the searches
+             * inside the clusters. The graph is allocated once per thread
+             * and reused by the solves of the maps that fit it. The cache of
+             * the cluster is valid if its stamp is the generation of the
+             * current leg, so binding the graph to the leg drops all the
+             * caches at once, and the cluster is not dirty, i.e. no danger was
+             * revealed in it since the cache was built.
              */
-            public void addItem(Object item, int x, int y) {
-                this.getCell(x, y).container.add(item);
-            }
+            private static class ClusterGraph implements Map.SeenListener {
+                // the span of the border of this length or longer has entrances at both ends
+                private static final int LONG_SPAN = 6;
+                private Map map;
+                private final int clusterSize;
+                private int clustersX;
+                private boolean hasCloak;
+                private int stepSize;
+                // caches of the clusters
+                private final int[] stamps;
+                private int generation = 0;
+                private final boolean[] isDirty;
+                private final boolean[] isClean;
+                private final int[] entrancesNumbers;
+                // entrances[k][i] is the cell of the cluster k, partners[k][i] is its neighbor across the border
+                private final int[][] entrances;
+                private final int[][] partners;
+                // distances[k][i * entrancesNumbers[k] + j] is the distance between the entrances i and j
+                private final int[][] distances;
+                // search over the graph, its nodes are the cells
+                private final int[] nodeDistances;
+                private final int[] nodeStamps;
+                private final int[] nodeParents;
+                private final IndexedHeap activeNodes;
+                private int searchGeneration = 0;
+                private int nextOrder;
+                // entrances from the start of the plan to the goal, valid until the next plan
+                final IntList plan = new IntList();
+                // searches inside the clusters, the cell (x, y) is at (y - y0) * clusterSize + (x - x0)
+                private final int[] startField;
+                private final int[] goalField;
+                private final int[] segmentField;
+                private final int[] queue;
+                // cluster of the walked segment or Map.NO_INDEX for the step across the border
+                private int segmentCluster;
+
+                ClusterGraph(Map map, int clusterSize) {
+                    this.clusterSize = clusterSize;
+                    int clustersNumber = clustersNumber(map, clusterSize);
+                    this.stamps = new int[clustersNumber];
+                    this.isDirty = new boolean[clustersNumber];
+                    this.isClean = new boolean[clustersNumber];
+                    this.entrancesNumbers = new int[clustersNumber];
+                    this.entrances = new int[clustersNumber][];
+                    this.partners = new int[clustersNumber][];
+                    this.distances = new int[clustersNumber][];
+                    int cellsNumber = map.sizeX * map.sizeY;
+                    this.nodeDistances = new int[cellsNumber];
+                    this.nodeStamps = new int[cellsNumber];
+                    this.nodeParents = new int[cellsNumber];
+                    this.activeNodes = new IndexedHeap(cellsNumber);
+                    this.startField = new int[clusterSize * clusterSize];
+                    this.goalField = new int[clusterSize * clusterSize];
+                    this.segmentField = new int[clusterSize * clusterSize];
+                    this.queue = new int[clusterSize * clusterSize];
+                }
 
-            /**
-             * Returns the cell at the given coordinates.
-             *
-             * @param x x-coordinate of the cell position
-             * @param y y-coordinate of the cell position
-             * @return cell at the given coordinates
-             */
-            public Cell getCell(int x, int y) {
-                return this.map.elementAt(y).elementAt(x);
-            }
+                private static int clustersNumber(Map map, int clusterSize) {
+                    return ((map.sizeX + clusterSize - 1) / clusterSize) *
+                           ((map.sizeY + clusterSize - 1) / clusterSize);
+                }
 
-            /**
-             * Returns the cell at the given position.
-             *
-             * @param pos position of the cell
-             * @return cell at the given position
-             */
-            public Cell getCell(Pair<Integer, Integer> pos) {
-                return getCell(pos.first, pos.second);
-            }
+                boolean fits(Map map) {
+                    return map.sizeX * map.sizeY <= activeNodes.capacity() &&
+                           clustersNumber(map, clusterSize) <= stamps.length;
+                }
 
-            /**
-             * Returns the exact clone of the map.
-             *
-             * @return the exact clone of the map.
-             */
-            public Map clone() {
-                Map mapCopy = new Map(sizeY, sizeX);
-                for (int y = 0; y < sizeY; y++) {
-                    Vector<Cell> mapRow = this.map.elementAt(y);
-                    for (int x = 0; x < sizeX; x++) {
-                        Cell cell = mapRow.elementAt(x);
-                        Cell cellCopy = (Cell) cell.clone();
-                        mapCopy.map.elementAt(y).setElementAt(cellCopy, x);
+                /**
+                 * Attaches the graph to the given map, which must fit it, for
+                 * the leg of the actor with or without the cloak, and drops
+                 * the caches of all the clusters.
+                 */
+                void bind(Map map, boolean hasCloak, int stepSize) {
+                    this.map = map;
+                    this.clustersX = (map.sizeX + clusterSize - 1) / clusterSize;
+                    this.hasCloak = hasCloak;
+                    this.stepSize = stepSize;
+                    if (++generation == 0) {
+                        // the generation wrapped around, so the stale stamps could look current
+                        Arrays.fill(stamps, 0);
+                        generation = 1;
                     }
                 }
-                return mapCopy;
-            }
 
-            /**
-             * Method marks the cell at the given position as visited and mark
-             * the neighbor cells at the perception as seen.
-             *
-             * @param x x-coordinate of the cell position
-             * @param y y-coordinate of the cell position
-             * @param perception perception type of the actor
-             */
-            public void visitCell(int x, int y, int perception) {
-                if (perception == 1) {
-                    for (int y_ = y - 1; y_ <= y + 1 && y_ < this.sizeY; y_++) {
-                        if (y_ >= 0) {
-                            for (int x_ = x - 1; x_ <= x + 1 && x_ < this.sizeX; x_++) {
-                                if (x_ >= 0) {
-                                    makeCellSeen(x_, y_);
-                                }
-                            }
+                @Override
+                public void onCellSeen(int x, int y) {
+                    if (!AStarSolver.isActorDead(map, map.index(x, y), hasCloak)) {
+                        return;
+                    }
+                    // the danger changes the cluster of the cell and the borders of the cell with the neighbors
+                    for (int y_ = max(y - 1, 0); y_ <= min(y + 1, map.sizeY - 1); y_++) {
+                        for (int x_ = max(x - 1, 0); x_ <= min(x + 1, map.sizeX - 1); x_++) {
+                            isDirty[(y_ / clusterSize) * clustersX + x_ / clusterSize] = true;
                         }
                     }
                 }
-                else if (perception == 2) {
-                    for (int i = -1; i <= 1; i++) {
-                        int x_ = x + i;
-                        if (x_ >= 0 && x_ < this.sizeX) {
-                            int y_ = y - 2;
-                            if (y_ >= 0 && y_ < this.sizeY) {
-                                makeCellSeen(x_, y_);
-                            }
-                            y_ = y + 2;
-                            if (y_ >= 0 && y_ < this.sizeY) {
-                                makeCellSeen(x_, y_);
-                            }
-                        }
 
-                        int y_ = y + i;
-                        if (y_ >= 0 && y_ < this.sizeY) {
-                            x_ = x - 2;
-                            if (x_ >= 0 && x_ < this.sizeX) {
-                                makeCellSeen(x_, y_);
+                /**
+                 * Finds the path from the start to the goal over the graph
+                 * and keeps its nodes in {@link #plan}.
+                 *
+                 * @return if the path exists
+                 */
+                boolean findPlan(int start, int goal) {
+                    if (++searchGeneration == 0) {
+                        Arrays.fill(nodeStamps, 0);
+                        searchGeneration = 1;
+                    }
+                    activeNodes.clear();
+                    nextOrder = 0;
+                    int startCluster = clusterOf(start);
+                    int goalCluster = clusterOf(goal);
+                    ensureCache(startCluster);
+                    ensureCache(goalCluster);
+                    fillField(startCluster, start, startField);
+                    fillField(goalCluster, goal, goalField);
+                    SolverMetrics metrics = map.metrics;
+
+                    relax(start, 0, Map.NO_INDEX);
+                    while (!activeNodes.isEmpty()) {
+                        int node = activeNodes.pop();
+                        if (metrics != null) {
+                            metrics.increment(SolverMetrics.Counter.OPEN_SET_POPS);
+                        }
+                        if (node == goal) {
+                            plan.clear();
+                            for (int n = goal; n != Map.NO_INDEX; n = nodeParents[n]) {
+                                plan.add(n);
+                            }
+                            plan.reverse();
+                            return true;
+                        }
+                        if (metrics != null) {
+                            metrics.increment(SolverMetrics.Counter.EXPANSIONS);
+                        }
+                        int distance = nodeDistances[node];
+                        int cluster = clusterOf(node);
+                        ensureCache(cluster);
+                        if (cluster == goalCluster) {
+                            relaxField(goal, distance, goalField[fieldIndex(cluster, node)], node);
+                        }
+                        int[] clusterEntrances = entrances[cluster];
+                        int entrancesNumber = entrancesNumbers[cluster];
+                        if (node == start) {
+                            for (int j = 0; j < entrancesNumber; j++) {
+                                int entrance = clusterEntrances[j];
+                                relaxField(entrance, distance, startField[fieldIndex(cluster, entrance)], node);
+                            }
+                        }
+                        for (int i = 0; i < entrancesNumber; i++) {
+                            if (clusterEntrances[i] == node) {
+                                relax(partners[cluster][i], distance + stepSize, node);
+                                for (int j = 0; j < entrancesNumber; j++) {
+                                    int d = distances[cluster][i * entrancesNumber + j];
+                                    if (d != Map.Cell.INFINITELY_FAR) {
+                                        relax(clusterEntrances[j], distance + d, node);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    return false;
+                }
+
+                private void relaxField(int node, int distance, int steps, int parent) {
+                    if (steps != Map.Cell.INFINITELY_FAR) {
+                        relax(node, distance + steps * stepSize, parent);
+                    }
+                }
+
+                private void relax(int node, int distance, int parent) {
+                    if (nodeStamps[node] == searchGeneration && nodeDistances[node] <= distance) {
+                        return;
+                    }
+                    nodeDistances[node] = distance;
+                    nodeStamps[node] = searchGeneration;
+                    nodeParents[node] = parent;
+                    long order = activeNodes.contains(node) ? activeNodes.key(node) & 0xFFFFFFFFL : nextOrder++;
+                    activeNodes.push(node, ((long) (distance + map.heuristics(node)) << 32) | order);
+                    if (map.metrics != null) {
+                        map.metrics.increment(SolverMetrics.Counter.RELAXATIONS);
+                    }
+                }
+
+                /**
+                 * Prepares the walk from the cell to the next node of the
+                 * plan, see {@link #nextCell}.
+                 */
+                void beginSegment(int from, int to) {
+                    int cluster = clusterOf(to);
+                    if (clusterOf(from) != cluster) {
+                        // the step across the border
+                        segmentCluster = Map.NO_INDEX;
+                        return;
+                    }
+                    segmentCluster = cluster;
+                    ensureCache(cluster);
+                    fillField(cluster, to, segmentField);
+                }
+
+                /**
+                 * Returns the next cell of the walk from the cell to the
+                 * node of the segment, or {@link Map#NO_INDEX} if the node is
+                 * not reachable inside the cluster anymore. The seen cells are
+                 * preferred to the not seen ones.
+                 */
+                int nextCell(int from, int to) {
+                    int cluster = segmentCluster;
+                    if (cluster == Map.NO_INDEX) {
+                        return to;
+                    }
+                    // step down the distances to the node
+                    int fromX = map.toX(from);
+                    int fromY = map.toY(from);
+                    int steps = segmentField[fieldIndex(cluster, from)];
+                    int x0 = (cluster % clustersX) * clusterSize;
+                    int y0 = (cluster / clustersX) * clusterSize;
+                    int x1 = min(x0 + clusterSize, map.sizeX);
+                    int y1 = min(y0 + clusterSize, map.sizeY);
+                    int notSeenCell = Map.NO_INDEX;
+                    for (int y = max(fromY - 1, y0); y <= min(fromY + 1, y1 - 1); y++) {
+                        for (int x = max(fromX - 1, x0); x <= min(fromX + 1, x1 - 1); x++) {
+                            if (segmentField[(y - y0) * clusterSize + x - x0] == steps - 1) {
+                                int cell = map.index(x, y);
+                                if (!map.hasFlag(cell, Map.SEEN)) {
+                                    notSeenCell = notSeenCell == Map.NO_INDEX ? cell : notSeenCell;
+                                }
+                                else if (!AStarSolver.isActorDead(map, cell, hasCloak)) {
+                                    return cell;
+                                }
+                            }
+                        }
+                    }
+                    return notSeenCell;
+                }
+
+                private int clusterOf(int cell) {
+                    return (map.toY(cell) / clusterSize) * clustersX + map.toX(cell) / clusterSize;
+                }
+
+                private int fieldIndex(int cluster, int cell) {
+                    return (map.toY(cell) - (cluster / clustersX) * clusterSize) * clusterSize +
+                           map.toX(cell) - (cluster % clustersX) * clusterSize;
+                }
+
+                private boolean isPassable(int cell) {
+                    return !map.hasFlag(cell, Map.SEEN) || !AStarSolver.isActorDead(map, cell, hasCloak);
+                }
+
+                /**
+                 * Builds the entrances of the cluster and the distances
+                 * between them, unless the cache of the cluster is valid.
+                 */
+                private void ensureCache(int cluster) {
+                    if (stamps[cluster] == generation && !isDirty[cluster]) {
+                        return;
+                    }
+                    int x0 = (cluster % clustersX) * clusterSize;
+                    int y0 = (cluster / clustersX) * clusterSize;
+                    int x1 = min(x0 + clusterSize, map.sizeX);
+                    int y1 = min(y0 + clusterSize, map.sizeY);
+                    boolean clean = true;
+                    for (int y = y0; y < y1 && clean; y++) {
+                        for (int x = x0; x < x1 && clean; x++) {
+                            clean = isPassable(map.index(x, y));
+                        }
+                    }
+                    isClean[cluster] = clean;
+                    isDirty[cluster] = false;
+                    stamps[cluster] = generation;
+
+                    // the borders with the neighbor clusters
+                    int entrancesNumber = 0;
+                    if (x0 > 0) {
+                        entrancesNumber = addEntrances(cluster, entrancesNumber, x0, y0, 0, 1, y1 - y0, -1, 0);
+                    }
+                    if (x1 < map.sizeX) {
+                        entrancesNumber = addEntrances(cluster, entrancesNumber, x1 - 1, y0, 0, 1, y1 - y0, 1, 0);
+                    }
+                    if (y0 > 0) {
+                        entrancesNumber = addEntrances(cluster, entrancesNumber, x0, y0, 1, 0, x1 - x0, 0, -1);
+                    }
+                    if (y1 < map.sizeY) {
+                        entrancesNumber = addEntrances(cluster, entrancesNumber, x0, y1 - 1, 1, 0, x1 - x0, 0, 1);
+                    }
+                    entrancesNumbers[cluster] = entrancesNumber;
+
+                    // the distances between the entrances
+                    if (distances[cluster] == null || distances[cluster].length < entrancesNumber * entrancesNumber) {
+                        distances[cluster] = new int[entrancesNumber * entrancesNumber];
+                    }
+                    int[] clusterEntrances = entrances[cluster];
+                    int[] clusterDistances = distances[cluster];
+                    for (int i = 0; i < entrancesNumber; i++) {
+                        int entrance = clusterEntrances[i];
+                        if (!clean) {
+                            fillField(cluster, entrance, segmentField);
+                        }
+                        for (int j = 0; j < entrancesNumber; j++) {
+                            int other = clusterEntrances[j];
+                            int steps = clean ? max(abs(map.toX(entrance) - map.toX(other)),
+                                                    abs(map.toY(entrance) - map.toY(other)))
+                                              : segmentField[fieldIndex(cluster, other)];
+                            clusterDistances[i * entrancesNumber + j] =
+                                steps == Map.Cell.INFINITELY_FAR ? steps : steps * stepSize;
+                        }
+                    }
+                }
+
+                private int addEntrances(int cluster, int entrancesNumber, int x, int y, int dx, int dy, int length,
+                                         int outX, int outY) {
+                    // adds the ends of the spans of the border passable on both sides, or the middle of the short
+                    // span, the neighbor cluster walks the same border in the same order and finds the same cells
+                    int spanStart = -1;
+                    for (int i = 0; i <= length; i++) {
+                        boolean isPassable = false;
+                        if (i < length) {
+                            int cell = map.index(x + i * dx, y + i * dy);
+                            isPassable = isPassable(cell) &&
+                                         isPassable(map.index(x + i * dx + outX, y + i * dy + outY));
+                        }
+                        if (isPassable && spanStart < 0) {
+                            spanStart = i;
+                        }
+                        else if (!isPassable && spanStart >= 0) {
+                            if (i - spanStart >= LONG_SPAN) {
+                                entrancesNumber = addEntrance(cluster, entrancesNumber, x + spanStart * dx,
+                                                              y + spanStart * dy, outX, outY);
+                                entrancesNumber = addEntrance(cluster, entrancesNumber, x + (i - 1) * dx,
+                                                              y + (i - 1) * dy, outX, outY);
+                            }
+                            else {
+                                int middle = (spanStart + i - 1) / 2;
+                                entrancesNumber = addEntrance(cluster, entrancesNumber, x + middle * dx,
+                                                              y + middle * dy, outX, outY);
+                            }
+                            spanStart = -1;
+                        }
+                    }
+                    return entrancesNumber;
+                }
+
+                private int addEntrance(int cluster, int entrancesNumber, int x, int y, int outX, int outY) {
+                    if (entrances[cluster] == null || entrances[cluster].length == entrancesNumber) {
+                        int capacity = max(8, 2 * entrancesNumber);
+                        entrances[cluster] = entrances[cluster] == null ? new int[capacity]
+                                                                        : Arrays.copyOf(entrances[cluster], capacity);
+                        partners[cluster] = partners[cluster] == null ? new int[capacity]
+                                                                      : Arrays.copyOf(partners[cluster], capacity);
+                    }
+                    entrances[cluster][entrancesNumber] = map.index(x, y);
+                    partners[cluster][entrancesNumber] = map.index(x + outX, y + outY);
+                    return entrancesNumber + 1;
+                }
+
+                /**
+                 * Fills the field with the numbers of steps from the source
+                 * cell to the cells of the cluster over the passable cells of
+                 * the cluster. The cluster must have the valid cache.
+                 */
+                private void fillField(int cluster, int source, int[] field) {
+                    int x0 = (cluster % clustersX) * clusterSize;
+                    int y0 = (cluster / clustersX) * clusterSize;
+                    int x1 = min(x0 + clusterSize, map.sizeX);
+                    int y1 = min(y0 + clusterSize, map.sizeY);
+                    if (isClean[cluster]) {
+                        int sourceX = map.toX(source);
+                        int sourceY = map.toY(source);
+                        for (int y = y0; y < y1; y++) {
+                            for (int x = x0; x < x1; x++) {
+                                field[(y - y0) * clusterSize + x - x0] = max(abs(x - sourceX), abs(y - sourceY));
+                            }
+                        }
+                        return;
+                    }
+                    Arrays.fill(field, Map.Cell.INFINITELY_FAR);
+                    if (!isPassable(source)) {
+                        return;
+                    }
+                    SolverMetrics metrics = map.metrics;
+                    int head = 0;
+                    int tail = 0;
+                    field[fieldIndex(cluster, source)] = 0;
+                    queue[tail++] = source;
+                    while (head < tail) {
+                        int cell = queue[head++];
+                        if (metrics != null) {
+                            metrics.increment(SolverMetrics.Counter.EXPANSIONS);
+                        }
+                        int cellX = map.toX(cell);
+                        int cellY = map.toY(cell);
+                        int steps = field[(cellY - y0) * clusterSize + cellX - x0] + 1;
+                        for (int y = max(cellY - 1, y0); y <= min(cellY + 1, y1 - 1); y++) {
+                            for (int x = max(cellX - 1, x0); x <= min(cellX + 1, x1 - 1); x++) {
+                                int local = (y - y0) * clusterSize + x - x0;
+                                if (field[local] == Map.Cell.INFINITELY_FAR && isPassable(map.index(x, y))) {
+                                    field[local] = steps;
+                                    queue[tail++] = map.index(x, y);
+                                }
                             }
-                            x_ = x + 2;
-                            if (x_ >= 0 && x_ < this.sizeX) {
-                                makeCellSeen(x_, y_);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * LayeredAStarSolver encapsulates methods for solving Book Finding
+         * problem using A* path finding algorithm over the layered state
+         * space. The state of the actor is the cell and the items the actor
+         * has: the cloak and the book, so every cell has four states, one on
+         * each layer. Taking an item moves the actor to the layer with the
+         * item, so one search finds the whole path to the exit and chooses
+         * whether to take the cloak and in which order by the cost of the
+         * path. The cells are discovered and checked for the danger by the
+         * same rules as in {@link AStarSolver}, and the heuristics on all the
+         * layers is max(dx, dy) from the exit.
+         */
+        public static class LayeredAStarSolver implements Solver {
+            /**
+             * Bits of the layer of the state: the layer is the set of the
+             * items the actor has.
+             */
+            static final int CLOAK_LAYER = 1;
+            static final int BOOK_LAYER = 2;
+            static final int LAYERS_NUMBER = 4;
+            private int stepSize;
+            // search structures of every thread, reused by its next solves
+            private final ThreadLocal<AStarSolver.SearchState> searchStates = new ThreadLocal<>();
+
+            /**
+             * Constructor initializes algorithm-specific information.
+             *
+             * @param stepSize cost of the step to measure the total cost of
+             *                 the state. Affects the choice of state for the
+             *                 next step.
+             */
+            public LayeredAStarSolver(int stepSize) {
+                this.stepSize = stepSize;
+            }
+
+            /**
+             * Solves Book Finding problem using A* path finding algorithm
+             * over the layered state space. The map is changed during the
+             * search and restored before return. The search has no separate
+             * legs, so its time and counters are reported for the leg it
+             * ended on: {@link SolveResult.Leg#EXIT} if the book was taken,
+             * otherwise {@link SolveResult.Leg#BOOK}.
+             */
+            @Override
+            public SolveResult solve(Map initMap, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
+                                     int perception, SolveResult result) {
+                int checkpoint = initMap.checkpoint();
+                initMap.metrics = result.getMetrics();
+                try {
+                    return solveInPlace(initMap, initMap.index(initActorPos.first, initActorPos.second),
+                                        initMap.index(exitPos.first, exitPos.second), perception, result);
+                }
+                finally {
+                    initMap.metrics = null;
+                    initMap.seenListener = null;
+                    initMap.rollback(checkpoint);
+                }
+            }
+
+            private SolveResult solveInPlace(Map map, int initActorPos, int exitPos, int perception,
+                                             SolveResult result) {
+                long legStart = result.start("Layered A*");
+                Map.Stencil perceptionZone = Map.Stencil.perception(perception);
+                SolverMetrics metrics = map.metrics;
+
+                // init map
+                map.calculateHeuristics(exitPos);
+                int cellsNumber = map.sizeX * map.sizeY;
+                AStarSolver.SearchState state = searchStates.get();
+                if (state == null || !state.fits(map)) {
+                    state = new AStarSolver.SearchState(map, LAYERS_NUMBER);
+                    searchStates.set(state);
+                }
+                state.bind(map);
+                state.reset(false);
+                // the state of the cell on the layer l is l * cellsNumber + cell
+                int[] parentMap = state.parentMap;
+
+                // create a container with states that could make further optimal path
+                AStarSolver.OpenSet activeStates = state.activeCells;
+                map.seenListener = activeStates;
+                int initState = layerOf(map, initActorPos) * cellsNumber + initActorPos;
+                state.setDistance(initState, 0, Map.NO_INDEX);
+                activeStates.add(initState, map.heuristics(initActorPos));
+
+                // try to find the exit on the layers with the book
+                int activeState = activeStates.pop();
+                int lastState = initState;
+                boolean isDead = false;
+                boolean isExitReached = false;
+                while (activeState != Map.NO_INDEX) {
+                    if (metrics != null) {
+                        metrics.increment(SolverMetrics.Counter.OPEN_SET_POPS);
+                    }
+                    lastState = activeState;
+                    int activeCell = activeState % cellsNumber;
+                    int activeLayer = activeState / cellsNumber;
+                    // interact with cell, the cell visited on the other layer gives no new knowledge
+                    if (!map.hasFlag(activeCell, Map.VISITED)) {
+                        map.visitCell(activeCell, perceptionZone);
+                    }
+                    if (AStarSolver.isActorDead(map, activeCell, (activeLayer & CLOAK_LAYER) != 0)) {
+                        // game over
+                        isDead = true;
+                        break;
+                    }
+                    if ((activeLayer & BOOK_LAYER) != 0 && map.containsAny(activeCell, EXIT_MASK)) {
+                        // success
+                        isExitReached = true;
+                        break;
+                    }
+                    if (metrics != null) {
+                        metrics.increment(SolverMetrics.Counter.EXPANSIONS);
+                    }
+
+                    // calculate distance to neighbors and update activeStates
+                    int potentialDist = state.distance(activeState) + stepSize;
+                    int activeX = map.toX(activeCell);
+                    int activeY = map.toY(activeCell);
+                    for (int y = activeY - 1; y <= activeY + 1; y++) {
+                        if (y >= 0 && y < map.sizeY) {
+                            for (int x = activeX - 1; x <= activeX + 1; x++) {
+                                if (x >= 0 && x < map.sizeX && !(x == activeX && y == activeY)) {
+                                    int cell = map.index(x, y);
+                                    // taking the item moves the actor to the layer with the item
+                                    int nextState = (activeLayer | layerOf(map, cell)) * cellsNumber + cell;
+                                    if (potentialDist < state.distance(nextState)) {
+                                        state.setDistance(nextState, potentialDist, activeState);
+                                        activeStates.add(nextState, potentialDist + map.heuristics(x, y));
+                                        if (metrics != null) {
+                                            metrics.increment(SolverMetrics.Counter.RELAXATIONS);
+                                        }
+                                    }
+                                }
                             }
                         }
                     }
-                    makeCellSeen(x, y);
+                    // choose next state
+                    activeState = activeStates.pop();
+                }
+
+                // the path to the exit, to the death or to the last reached state if there is no way
+                IntList path = result.path;
+                for (int pathState = lastState; pathState != Map.NO_INDEX; pathState = parentMap[pathState]) {
+                    path.add(pathState % cellsNumber);
+                }
+                path.reverse();
+                boolean hasBook = ((lastState / cellsNumber) & BOOK_LAYER) != 0;
+                result.endLeg(hasBook ? SolveResult.Leg.EXIT : SolveResult.Leg.BOOK, legStart);
+                return result.finish(isDead, isExitReached);
+            }
+
+            private static int layerOf(Map map, int cell) {
+                return (map.containsAny(cell, CLOAK_MASK) ? CLOAK_LAYER : 0) |
+                       (map.containsAny(cell, BOOK_MASK) ? BOOK_LAYER : 0);
+            }
+        }
+
+        /**
+         * BacktrackingSolver encapsulates methods for solving Book Finding
+         * problem using Backtracking path finding algorithm. This
+         * implementation uses classical backtracking enhanced with heuristic
+         * on max(dx, dy) from target.
+         */
+        public static class BacktrackingSolver implements Solver {
+            // walk engines of every thread, reused by its next solves
+            private final ThreadLocal<Walk> walks = new ThreadLocal<>();
+
+            /**
+             * Solves Book Finding problem using Backtracking path finding
+             * algorithm enhanced with heuristics. The map is changed during
+             * the search and restored before return.
+             */
+            @Override
+            public SolveResult solve(Map initMap, Pair<Integer, Integer> initActorPos, Pair<Integer, Integer> exitPos,
+                                     int perception, SolveResult result) {
+                int checkpoint = initMap.checkpoint();
+                initMap.metrics = result.getMetrics();
+                try {
+                    return solveInPlace(initMap, initMap.index(initActorPos.first, initActorPos.second),
+                                        initMap.index(exitPos.first, exitPos.second), perception, result);
+                }
+                finally {
+                    initMap.metrics = null;
+                    initMap.rollback(checkpoint);
+                }
+            }
+
+            private SolveResult solveInPlace(Map map, int initActorPos, int exitPos, int perception,
+                                             SolveResult result) {
+                long legStart = result.start("Backtracking");
+                IntList path = result.path;
+
+                // init map
+                map.calculateHeuristics(exitPos);
+                Walk walk = walks.get();
+                if (walk == null || !walk.fits(map)) {
+                    walk = new Walk(map);
+                    walks.set(walk);
+                }
+                walk.bind(map, perception);
+
+                // try to discovery book or cloak from init
+                IntList pathToCloakOrBook = walk.findPathToObj(CLOAK_MASK | BOOK_MASK, initActorPos, false);
+                boolean isDead = walk.isDead;
+                int objCoords = pathToCloakOrBook.last();
+
+                if (map.containsAny(objCoords, CLOAK_MASK)) {
+                    // find optimal path to cloak from init
+                    pathToCloakOrBook = walk.findPathToCoords(objCoords, initActorPos, false);
+                    path.addAll(pathToCloakOrBook);
+                    legStart = result.endLeg(SolveResult.Leg.CLOAK, legStart);
+
+                    // try to discovery book from init, cloak
+                    IntList pathCloakToBook = walk.findPathToObj(BOOK_MASK, objCoords, true);
+                    isDead = walk.isDead;
+                    int prevObjCoords = objCoords;
+                    objCoords = pathCloakToBook.last();
+
+                    if (map.containsAny(objCoords, BOOK_MASK)) {
+                        // find optimal path to book from init, cloak
+                        pathCloakToBook = walk.findPathToCoords(objCoords, prevObjCoords, true);
+                        path.addAll(pathCloakToBook, 1);
+                        legStart = result.endLeg(SolveResult.Leg.BOOK, legStart);
+
+                        // find optimal path to exit from init, cloak, book
+                        prevObjCoords = objCoords;
+                        objCoords = exitPos;
+                        IntList pathCloakBookToExit = walk.findPathToCoords(objCoords, prevObjCoords, true);
+                        isDead = walk.isDead;
+                        path.addAll(pathCloakBookToExit, 1);
+                        result.endLeg(SolveResult.Leg.EXIT, legStart);
+
+                        // init, cloak, book, exit or death or no way
+                        return result.finish(isDead, map.containsAny(pathCloakBookToExit.last(), EXIT_MASK));
+                    }
+
+                    // init, cloak, death or no way
+                    path.addAll(pathCloakToBook, 1);
+                    result.endLeg(SolveResult.Leg.BOOK, legStart);
+                    return result.finish(isDead, false);
+                }
+                else if (map.containsAny(objCoords, BOOK_MASK)) {
+                    // find optimal path to book from init
+                    pathToCloakOrBook = walk.findPathToCoords(objCoords, initActorPos, false);
+                    path.addAll(pathToCloakOrBook);
+                    legStart = result.endLeg(SolveResult.Leg.BOOK, legStart);
+
+                    // try to discovery cloak or exit from book
+                    IntList pathBookToCloakOrExit = walk.findPathToObj(CLOAK_MASK | EXIT_MASK, objCoords, false);
+                    isDead = walk.isDead;
+                    int prevObjCoords = objCoords;
+                    objCoords = pathBookToCloakOrExit.last();
+
+                    if (map.containsAny(objCoords, CLOAK_MASK)) {
+                        // find optimal path to cloak from book
+                        pathBookToCloakOrExit = walk.findPathToCoords(objCoords, prevObjCoords, false);
+                        path.addAll(pathBookToCloakOrExit, 1);
+                        legStart = result.endLeg(SolveResult.Leg.CLOAK, legStart);
+
+                        // find optimal path to exit from book, cloak
+                        prevObjCoords = objCoords;
+                        objCoords = exitPos;
+                        IntList pathBookCloakToExit = walk.findPathToCoords(objCoords, prevObjCoords, true);
+                        isDead = walk.isDead;
+                        path.addAll(pathBookCloakToExit, 1);
+                        result.endLeg(SolveResult.Leg.EXIT, legStart);
+
+                        // init, book, cloak, exit or death or no way
+                        return result.finish(isDead, map.containsAny(pathBookCloakToExit.last(), EXIT_MASK));
+                    }
+                    else if (map.containsAny(objCoords, EXIT_MASK)) {
+                        // find optimal path to exit from book
+                        pathBookToCloakOrExit = walk.findPathToCoords(objCoords, prevObjCoords, false);
+                        path.addAll(pathBookToCloakOrExit, 1);
+                        result.endLeg(SolveResult.Leg.EXIT, legStart);
+
+                        // init, book, exit
+                        return result.finish(false, true);
+                    }
+
+                    // init, book, death or no way
+                    path.addAll(pathBookToCloakOrExit, 1);
+                    result.endLeg(SolveResult.Leg.EXIT, legStart);
+                    return result.finish(isDead, false);
                 }
-                this.getCell(x, y).isVisited = true;
+
+                // init, death or no way
+                path.addAll(pathToCloakOrBook);
+                result.endLeg(SolveResult.Leg.BOOK, legStart);
+                return result.finish(isDead, false);
             }
 
-            private void makeCellSeen(int x, int y) {
-                Cell cell = getCell(x, y);
-                cell.isSeen = true;
-                if (cell.isUnderPerception) {
-                    for (int y_ = y - 1; y_ <= y + 1 && y_ < sizeY; y_++) {
-                        if (y_ >= 0) {
-                            for (int x_ = x - 1; x_ <= x + 1 && x_ < sizeX; x_++) {
-                                if (x_ >= 0 && !(x_ == x && y_ == y)) {
-                                    Cell neighbor = getCell(x_, y_);
-                                    if (neighbor.isSeen && !neighbor.isUnderPerception) {
-                                        cell.isBorderPerception = true;
-                                        return;
+            /**
+             * Walk keeps the cells visited by the current search. It is
+             * allocated once per thread and reused by the solves of the maps
+             * that fit it, and each search clears only the cells visited by
+             * the previous search.
+             */
+            private static class Walk {
+                Map map;
+                int perception;
+                final boolean[] isVisited;
+                final IntList visitedCells = new IntList();
+                // if the actor died on the last cell of the last search
+                boolean isDead;
+
+                Walk(Map map) {
+                    this.isVisited = new boolean[map.sizeX * map.sizeY];
+                }
+
+                boolean fits(Map map) {
+                    return map.sizeX * map.sizeY <= isVisited.length;
+                }
+
+                void bind(Map map, int perception) {
+                    this.map = map;
+                    this.perception = perception;
+                }
+
+                IntList findPathToObj(int objsToFind, int initPos, boolean hasCloak) {
+                    return findPathToObjOrCoords(objsToFind, Map.NO_INDEX, initPos, hasCloak, false);
+                }
+
+                IntList findPathToCoords(int destPos, int initPos, boolean hasCloak) {
+                    map.calculateHeuristics(destPos);
+                    return findPathToObjOrCoords(0, destPos, initPos, hasCloak, false);
+                }
+
+                private void reset() {
+                    for (int i = 0; i < visitedCells.size(); i++) {
+                        isVisited[visitedCells.get(i)] = false;
+                    }
+                    visitedCells.clear();
+                }
+
+                private void visit(int cell) {
+                    if (!isVisited[cell]) {
+                        isVisited[cell] = true;
+                        visitedCells.add(cell);
+                    }
+                }
+
+                private IntList findPathToObjOrCoords(int objsToFind, int destPos, int initPos, boolean hasCloak,
+                                                      boolean visitUnsafeCells) {
+                    // returns the path, isDead tells if the actor died at its end
+                    // destPos is Map.NO_INDEX if only objsToFind are searched
+                    // the map is changed in place with the new knowledge of the actor
+
+                    SolverMetrics metrics = map.metrics;
+                    reset();
+                    visit(initPos);
+                    IntList path = new IntList();
+                    path.add(initPos);
+                    int activeCell = initPos;
+                    // interact with cell
+                    map.visitCell(initPos, perception);
+                    isDead = isActorDead(activeCell, hasCloak);
+
+                    while (!isDead && !map.containsAny(activeCell, objsToFind) && activeCell != destPos) {
+                        if (metrics != null) {
+                            metrics.increment(SolverMetrics.Counter.EXPANSIONS);
+                        }
+                        // choose next cell
+                        int nextActiveCell = chooseNextCell(activeCell, hasCloak, visitUnsafeCells);
+                        if (nextActiveCell == Map.NO_INDEX) {
+                            // no more steps possible from active cell
+                            if (path.size() > 1) {
+                                if (metrics != null) {
+                                    metrics.increment(SolverMetrics.Counter.BACKTRACK_POPS);
+                                }
+                                path.removeLast();
+                                activeCell = path.last();
+                                continue;
+                            }
+                            // no more steps are possible at all
+                            if (hasCloak && !visitUnsafeCells) {
+                                // try to find ignoring risks
+                                return findPathToObjOrCoords(objsToFind, destPos, initPos, hasCloak, true);
+                            }
+                            break;
+                        }
+                        activeCell = nextActiveCell;
+                        path.add(activeCell);
+                        // interact with next cell
+                        map.visitCell(activeCell, perception);
+                        visit(activeCell);
+                        isDead = isActorDead(activeCell, hasCloak);
+                    }
+                    return path;
+                }
+
+                private int chooseNextCell(int currentPos, boolean hasCloak, boolean considerUnsafeCells) {
+                    // return safest and closest to dest unvisited cell from neighborhood, if all the neighbors are
+                    // visited or guaranteed lead to die, then Map.NO_INDEX is returned
+
+                    int minSafeCell = Map.NO_INDEX;
+                    int minSafeCellCost = 0;
+                    int minUnknownCell = Map.NO_INDEX;
+                    int minUnknownCellCost = 0;
+                    int minUnsafeCell = Map.NO_INDEX;
+                    int minUnsafeCellCost = 0;
+                    int currentX = map.toX(currentPos);
+                    int currentY = map.toY(currentPos);
+                    for (int y = currentY - 1; y <= currentY + 1 && y < map.sizeY; y++) {
+                        if (y >= 0) {
+                            for (int x = currentX - 1; x <= currentX + 1 && x < map.sizeX; x++) {
+                                if (x >= 0 && !(x == currentX && y == currentY)) {
+                                    int cell = map.index(x, y);
+                                    if (!isVisited[cell]) {
+                                        byte cellFlags = map.flags[cell];
+                                        int cellCost = map.heuristics(x, y) + map.distances[cell];
+                                        if ((cellFlags & Map.SEEN) != 0) {
+                                            if (map.isUnderPerception(cell)) {
+                                                if (hasCloak) {
+                                                    if ((cellFlags & (Map.BORDER_PERCEPTION | Map.VISITED)) != 0) {
+                                                        if (minSafeCell == Map.NO_INDEX ||
+                                                            cellCost < minSafeCellCost) {
+                                                            minSafeCell = cell;
+                                                            minSafeCellCost = cellCost;
+                                                        }
+                                                    }
+                                                    else if (minUnsafeCell == Map.NO_INDEX ||
+                                                             cellCost < minUnsafeCellCost) {
+                                                        minUnsafeCell = cell;
+                                                        minUnsafeCellCost = cellCost;
+                                                    }
+                                                }
+                                            }
+                                            else if (minSafeCell == Map.NO_INDEX || cellCost < minSafeCellCost) {
+                                                minSafeCell = cell;
+                                                minSafeCellCost = cellCost;
+                                            }
+                                        }
+                                        else if (minUnknownCell == Map.NO_INDEX || cellCost < minUnknownCellCost) {
+                                            minUnknownCell = cell;
+                                            minUnknownCellCost = cellCost;
+                                        }
                                     }
                                 }
                             }
                         }
                     }
+                    if (minSafeCell != Map.NO_INDEX) {
+                        return minSafeCell;
+                    }
+                    else if (minUnknownCell != Map.NO_INDEX) {
+                        return minUnknownCell;
+                    }
+                    else if (considerUnsafeCells) {
+                        return minUnsafeCell;
+                    }
+                    return Map.NO_INDEX;
+                }
+
+                private boolean isActorDead(int currentCell, boolean hasCloak) {
+                    return map.isDeadly(currentCell, hasCloak);
+                }
+            }
+        }
+
+        /**
+         * Map class describes the game space and encapsulates methods for
+         * interacting with it. Game space is a matrix of cells. The state of
+         * the cells is stored row by row in primitive arrays, {@link Cell} is
+         * only a view of one position in these arrays.
+         */
+        public static class Map {
+            /**
+             * Index that does not point to any cell.
+             */
+            public static final int NO_INDEX = -1;
+            /**
+             * Bits of the cell state flags. Whether the cell is under
+             * perception is kept apart, see {@link #perceptionZones}.
+             */
+            static final byte SEEN = 2;
+            static final byte BORDER_PERCEPTION = 4;
+            static final byte VISITED = 8;
+            /**
+             * Registered kinds of the items that can be placed on the map.
+             * Position of the kind is the bit of the kind in the item mask of
+             * a cell. The registration replaces the arrays of the registry
+             * instead of changing them, so the registry is read without the
+             * lock.
+             */
+            private static volatile Object[] itemKinds = new Object[0];
+            /**
+             * Perception zones of the registered kinds of the enemies by the
+             * bits of the kinds and the mask of the kinds. The mask is written
+             * after the zones, so the zones of the kinds of the mask are seen
+             * by the thread that has read the mask.
+             */
+            private static volatile Stencil[] enemyZones = new Stencil[Integer.SIZE];
+            private static volatile int enemyKindsMask = 0;
+            private static final Object kindsLock = new Object();
+
+            /**
+             * Abstract distance to each cell.
+             */
+            final int[] distances;
+            /**
+             * Goal of the heuristic values of the cells or {@link #NO_INDEX}
+             * if the heuristics are not calculated, then they are 0. The
+             * values are calculated on demand from the goal, see
+             * {@link #heuristics(int, int)}.
+             */
+            private int heuristicsGoal = NO_INDEX;
+            private int heuristicsGoalX, heuristicsGoalY;
+            /**
+             * State flags of each cell.
+             */
+            final byte[] flags;
+            /**
+             * Mask of the items contained inside each cell.
+             */
+            final int[] items;
+            /**
+             * Bitsets of the cells under perception of the enemies and of the
+             * cells of the enemies, which are under perception too. The
+             * bitsets are row-major: the bit of the cell is its index, so a
+             * span of a row is a run of the bits, and the check if the cell
+             * kills the actor is a single bit test, see {@link #isDeadly}.
+             */
+            final long[] perceptionZones;
+            final long[] enemyCells;
+            /**
+             * Spatial index of the cells that contain items, the enemies
+             * included.
+             */
+            private final BucketGrid itemCells;
+            /**
+             * If any cell was seen since the map was built. The borders of
+             * the perception zones depend on the seen cells only, so the
+             * enemies added to the map that has no seen cells skip them. The
+             * flag is not reset by {@link #rollback(int)}, so it only may
+             * cause extra work.
+             */
+            private boolean hasSeenCells = false;
+            /**
+             * Listener that is notified when a cell of the map becomes seen.
+             * It is not copied by {@link #clone()}.
+             */
+            SeenListener seenListener;
+            /**
+             * Metrics that count the work done on the map by the current
+             * solution. It is not copied by {@link #clone()}.
+             */
+            SolverMetrics metrics;
+            /**
+             * Undo log of the changes made after the first open checkpoint.
+             * Each record is [kind of the value, index of the cell, old
+             * value], the records of the heuristics goal have no cell.
+             */
+            private int[] undoLog = new int[0];
+            private int undoLogSize = 0;
+            private int openCheckpoints = 0;
+            private static final int LOG_FLAGS = 0;
+            private static final int LOG_ITEMS = 1;
+            private static final int LOG_DISTANCES = 2;
+            private static final int LOG_HEURISTICS_GOAL = 3;
+            // the words of the bitsets are recorded as two records of the low and of the high half
+            private static final int LOG_PERCEPTION_ZONES = 4;
+            private static final int LOG_ENEMY_CELLS = 6;
+            /**
+             * sizeX and sizeY represent the size of the first and second
+             * dimensions of the map.
+             */
+            public int sizeX, sizeY;
+
+            /**
+             * Constructor for the Map that initializes the map and sets sizeX
+             * and sizeY.
+             *
+             * @param sizeY size of the second dimension
+             * @param sizeX size of the first dimension
+             */
+            public Map(int sizeY, int sizeX) {
+                if (sizeX <= 0 || sizeY <= 0 || (long) sizeX * sizeY > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Invalid map size: " + sizeX + "x" + sizeY);
+                }
+                this.sizeX = sizeX;
+                this.sizeY = sizeY;
+                this.distances = new int[sizeX * sizeY];
+                Arrays.fill(this.distances, Cell.INFINITELY_FAR);
+                this.flags = new byte[sizeX * sizeY];
+                this.items = new int[sizeX * sizeY];
+                this.perceptionZones = new long[(sizeX * sizeY + Long.SIZE - 1) / Long.SIZE];
+                this.enemyCells = new long[(sizeX * sizeY + Long.SIZE - 1) / Long.SIZE];
+                this.itemCells = new BucketGrid(sizeX, sizeY);
+            }
+
+            private Map(Map other) {
+                this.sizeX = other.sizeX;
+                this.sizeY = other.sizeY;
+                this.distances = other.distances.clone();
+                setHeuristicsGoal(other.heuristicsGoal);
+                this.flags = other.flags.clone();
+                this.items = other.items.clone();
+                this.perceptionZones = other.perceptionZones.clone();
+                this.enemyCells = other.enemyCells.clone();
+                this.itemCells = other.itemCells.copy();
+                this.hasSeenCells = other.hasSeenCells;
+            }
+
+            /**
+             * Method calculate heuristic for each cell of the map by the
+             * max(dx, dy) formula. Distances dx and dy is calculated as
+             * the difference between cell coordinates and goal position.
+             * The values are calculated on demand, so the method only
+             * changes the goal.
+             *
+             * @param goalCoords position of the goal
+             */
+            public void calculateHeuristics(Pair<Integer, Integer> goalCoords) {
+                calculateHeuristics(index(goalCoords.first, goalCoords.second));
+            }
+
+            /**
+             * Method calculate heuristic for each cell of the map by the
+             * max(dx, dy) formula to the goal at the given index. The values
+             * are calculated on demand, so the method only changes the goal.
+             *
+             * @param goalIndex index of the goal position
+             */
+            public void calculateHeuristics(int goalIndex) {
+                if (heuristicsGoal != goalIndex) {
+                    record(LOG_HEURISTICS_GOAL, NO_INDEX, heuristicsGoal);
+                    setHeuristicsGoal(goalIndex);
+                }
+            }
+
+            /**
+             * Returns the index of the goal of the heuristics, see {@link
+             * #calculateHeuristics(int)}, or {@link #NO_INDEX} if it is not
+             * set.
+             *
+             * @return index of the goal position
+             */
+            public int getHeuristicsGoal() {
+                return heuristicsGoal;
+            }
+
+            private void setHeuristicsGoal(int goalIndex) {
+                heuristicsGoal = goalIndex;
+                if (goalIndex != NO_INDEX) {
+                    heuristicsGoalX = toX(goalIndex);
+                    heuristicsGoalY = toY(goalIndex);
+                }
+            }
+
+            /**
+             * Returns the heuristic value of the cell at the given
+             * coordinates: max(dx, dy) to the goal of the heuristics, see
+             * {@link #calculateHeuristics(int)}.
+             *
+             * @param x x-coordinate of the cell position
+             * @param y y-coordinate of the cell position
+             * @return heuristic value of the cell
+             */
+            public int heuristics(int x, int y) {
+                if (heuristicsGoal == NO_INDEX) {
+                    return 0;
+                }
+                return max(abs(x - heuristicsGoalX), abs(y - heuristicsGoalY));
+            }
+
+            /**
+             * Returns the heuristic value of the cell at the given index.
+             *
+             * @param index index of the cell position
+             * @return heuristic value of the cell
+             */
+            public int heuristics(int index) {
+                int y = index / sizeX;
+                return heuristics(index - y * sizeX, y);
+            }
+
+            /**
+             * Method adds an enemy of the registered kind to the map and sets
+             * the cells of the perception zone of the kind as under his/her
+             * perception, see {@link #registerEnemyKind(Object, int)}.
+             *
+             * @param enemy enemy that stay on given position
+             * @param x x-coordinate of the enemy position
+             * @param y y-coordinate of the enemy position
+             */
+            public void addEnemy(Object enemy, int x, int y) {
+                int enemyMask = itemMask(enemy);
+                if (enemyMask == 0 || (enemyKindsMask & enemyMask) == 0) {
+                    throw new IllegalArgumentException("Unknown kind of the enemy: " + enemy);
+                }
+                addEnemies(enemyMask, x, y);
+            }
+
+            /**
+             * Method adds the enemies of the registered kinds of the given
+             * mask to the map, see {@link #addEnemy(Object, int, int)}. The
+             * mask is resolved once per kind, e.g. {@link
+             * BookFinding#FILCH_MASK}, so no kind is looked up.
+             *
+             * @param enemiesMask mask of the registered kinds of the enemies
+             * @param x x-coordinate of the enemies position
+             * @param y y-coordinate of the enemies position
+             */
+            public void addEnemies(int enemiesMask, int x, int y) {
+                int kindsMask = enemyKindsMask;
+                if ((enemiesMask & ~kindsMask) != 0) {
+                    throw new IllegalArgumentException("Unknown kinds of the enemies: " +
+                                                       Integer.toBinaryString(enemiesMask & ~kindsMask));
+                }
+                Stencil[] zones = enemyZones;
+                for (int mask = enemiesMask; mask != 0; mask &= mask - 1) {
+                    int enemyMask = mask & -mask;
+                    placeEnemy(enemyMask, zones[Integer.numberOfTrailingZeros(enemyMask)], x, y);
+                }
+            }
+
+            /**
+             * Method adds an enemy to the map and sets the neighbor cells as
+             * under his/her perception.
+             *
+             * @param enemy enemy that stay on given position
+             * @param perception perception distance of the enemy
+             * @param x x-coordinate of the enemy position
+             * @param y y-coordinate of the enemy position
+             * @throws IllegalArgumentException if the kind of the enemy is
+             *                                  registered with another zone
+             */
+            public void addEnemy(Object enemy, int perception, int x, int y) {
+                addEnemy(enemy, Stencil.chebyshev(perception), x, y);
+            }
+
+            /**
+             * Method adds an enemy to the map and sets the cells of the given
+             * zone around the enemy as under his/her perception. The kind of
+             * the enemy is registered with the given zone if it is new.
+             *
+             * @param enemy enemy that stay on given position
+             * @param zone perception zone of the enemy
+             * @param x x-coordinate of the enemy position
+             * @param y y-coordinate of the enemy position
+             * @throws IllegalArgumentException if the kind of the enemy is
+             *                                  registered with another zone
+             */
+            public void addEnemy(Object enemy, Stencil zone, int x, int y) {
+                placeEnemy(registerEnemyKind(enemy, zone), zone, x, y);
+            }
+
+            private void placeEnemy(int enemyMask, Stencil zone, int x, int y) {
+                addItems(enemyMask, x, y);
+                int i = index(x, y);
+                setBits(LOG_ENEMY_CELLS, enemyCells, i, i);
+                setBits(LOG_PERCEPTION_ZONES, perceptionZones, i, i);
+                // the spans of the rows of the zone are the runs of the bits
+                int[] spans = zone.spans;
+                for (int span = 0; span < spans.length; span += 3) {
+                    int y_ = y + spans[span];
+                    if (y_ >= 0 && y_ < this.sizeY) {
+                        int fromX = max(x + spans[span + 1], 0);
+                        int toX = Math.min(x + spans[span + 2], this.sizeX - 1);
+                        if (fromX <= toX) {
+                            setBits(LOG_PERCEPTION_ZONES, perceptionZones, y_ * this.sizeX + fromX,
+                                    y_ * this.sizeX + toX);
+                        }
+                    }
+                }
+                if (hasSeenCells) {
+                    updateBorder(x, y, zone.radius + 1);
+                }
+            }
+
+            private void setBits(int logKind, long[] bits, int from, int to) {
+                // sets the bits from..to of the bitset
+                int fromWord = from >>> 6;
+                int toWord = to >>> 6;
+                for (int word = fromWord; word <= toWord; word++) {
+                    long mask = -1L;
+                    if (word == fromWord) {
+                        mask &= -1L << from;
+                    }
+                    if (word == toWord) {
+                        mask &= -1L >>> (Long.SIZE - 1 - (to & (Long.SIZE - 1)));
+                    }
+                    long oldWord = bits[word];
+                    if ((oldWord | mask) != oldWord) {
+                        record(logKind, word, (int) oldWord);
+                        record(logKind + 1, word, (int) (oldWord >>> 32));
+                        bits[word] = oldWord | mask;
+                    }
+                }
+            }
+
+            /**
+             * Method adds an item to the map at the given coordinates. The
+             * kind of the item is registered if it is new.
+             *
+             * @param item item to be placed
+             * @param x x-coordinate of the item position
+             * @param y y-coordinate of the item position
+             */
+            public void addItem(Object item, int x, int y) {
+                addItems(registerItemKind(item), x, y);
+            }
+
+            /**
+             * Method adds the items of the registered kinds of the given mask
+             * to the map at the given coordinates. The mask is resolved once
+             * per kind, e.g. {@link BookFinding#BOOK_MASK}, so no kind is
+             * looked up. The enemies are added by {@link #addEnemies(int,
+             * int, int)}.
+             *
+             * @param itemsMask mask of the registered kinds of the items
+             * @param x x-coordinate of the items position
+             * @param y y-coordinate of the items position
+             */
+            public void addItems(int itemsMask, int x, int y) {
+                int kindsNumber = itemKinds.length;
+                if (kindsNumber < Integer.SIZE && (itemsMask & -(1 << kindsNumber)) != 0) {
+                    throw new IllegalArgumentException("Unknown kinds of the items: " +
+                                                       Integer.toBinaryString(itemsMask & -(1 << kindsNumber)));
+                }
+                int i = index(x, y);
+                if ((items[i] & itemsMask) != itemsMask) {
+                    record(LOG_ITEMS, i, items[i]);
+                    if (items[i] == 0) {
+                        itemCells.add(i, x, y);
+                    }
+                    items[i] |= itemsMask;
+                }
+            }
+
+            /**
+             * Returns the indices of the cells that contain at least one item
+             * of the given mask. The cells are read from the spatial index,
+             * so the time depends on the number of the cells with items, not
+             * on the size of the map.
+             *
+             * @param itemsMask mask of the item kinds, see
+             *                  {@link #registerItemKind(Object)}
+             * @param result list to add the indices to
+             * @return the given list
+             */
+            public IntList findItems(int itemsMask, IntList result) {
+                return findItems(0, 0, max(sizeX, sizeY), itemsMask, result);
+            }
+
+            /**
+             * Returns the indices of the cells within max(dx, dy) distance of
+             * the given position that contain at least one item of the given
+             * mask. Only the buckets of the spatial index that overlap the
+             * square of the distance are read.
+             *
+             * @param x x-coordinate of the position
+             * @param y y-coordinate of the position
+             * @param radius max distance to the position
+             * @param itemsMask mask of the item kinds, see
+             *                  {@link #registerItemKind(Object)}
+             * @param result list to add the indices to
+             * @return the given list
+             */
+            public IntList findItems(int x, int y, int radius, int itemsMask, IntList result) {
+                int fromX = max(x - radius, 0) / BucketGrid.BUCKET_SIZE;
+                int toX = Math.min(x + radius, sizeX - 1) / BucketGrid.BUCKET_SIZE;
+                int fromY = max(y - radius, 0) / BucketGrid.BUCKET_SIZE;
+                int toY = Math.min(y + radius, sizeY - 1) / BucketGrid.BUCKET_SIZE;
+                for (int bucketY = fromY; bucketY <= toY; bucketY++) {
+                    for (int bucketX = fromX; bucketX <= toX; bucketX++) {
+                        int bucket = bucketY * itemCells.bucketsX + bucketX;
+                        int[] cells = itemCells.cells[bucket];
+                        for (int j = 0; j < itemCells.sizes[bucket]; j++) {
+                            int cell = cells[j];
+                            if ((items[cell] & itemsMask) != 0 &&
+                                max(abs(toX(cell) - x), abs(toY(cell) - y)) <= radius) {
+                                result.add(cell);
+                            }
+                        }
+                    }
+                }
+                return result;
+            }
+
+            /**
+             * Returns the indices of the cells of the enemies within max(dx,
+             * dy) distance of the given position, see
+             * {@link #findItems(int, int, int, int, IntList)}.
+             *
+             * @param x x-coordinate of the position
+             * @param y y-coordinate of the position
+             * @param radius max distance to the position
+             * @param result list to add the indices to
+             * @return the given list
+             */
+            public IntList findEnemies(int x, int y, int radius, IntList result) {
+                return findItems(x, y, radius, enemyKindsMask, result);
+            }
+
+            /**
+             * Returns the index of the cell nearest to the given position by
+             * max(dx, dy) distance that contains at least one item of the
+             * given mask. The buckets of the spatial index are read ring by
+             * ring around the position until no closer cell can be found.
+             *
+             * @param x x-coordinate of the position
+             * @param y y-coordinate of the position
+             * @param itemsMask mask of the item kinds, see
+             *                  {@link #registerItemKind(Object)}
+             * @param onlySeen if only the cells seen by the actor are found
+             * @return index of the nearest cell or {@link #NO_INDEX}
+             */
+            public int findNearestItem(int x, int y, int itemsMask, boolean onlySeen) {
+                int centerX = x / BucketGrid.BUCKET_SIZE;
+                int centerY = y / BucketGrid.BUCKET_SIZE;
+                int ringsNumber = max(max(centerX, itemCells.bucketsX - 1 - centerX),
+                                      max(centerY, itemCells.bucketsY - 1 - centerY));
+                int nearestCell = NO_INDEX;
+                int nearestDistance = Integer.MAX_VALUE;
+                // the cells of the ring k are at least (k - 1) * BUCKET_SIZE + 1 cells away
+                for (int ring = 0; ring <= ringsNumber &&
+                                   nearestDistance > (ring - 1) * BucketGrid.BUCKET_SIZE; ring++) {
+                    for (int bucketY = max(centerY - ring, 0);
+                         bucketY <= Math.min(centerY + ring, itemCells.bucketsY - 1); bucketY++) {
+                        // the inner rows of the ring have only two buckets
+                        int step = abs(bucketY - centerY) == ring ? 1 : max(2 * ring, 1);
+                        for (int bucketX = centerX - ring; bucketX <= centerX + ring; bucketX += step) {
+                            if (bucketX < 0 || bucketX >= itemCells.bucketsX) {
+                                continue;
+                            }
+                            int bucket = bucketY * itemCells.bucketsX + bucketX;
+                            int[] cells = itemCells.cells[bucket];
+                            for (int j = 0; j < itemCells.sizes[bucket]; j++) {
+                                int cell = cells[j];
+                                if ((items[cell] & itemsMask) != 0 && (!onlySeen || hasFlag(cell, SEEN))) {
+                                    int distance = max(abs(toX(cell) - x), abs(toY(cell) - y));
+                                    if (distance < nearestDistance || (distance == nearestDistance &&
+                                                                       cell < nearestCell)) {
+                                        nearestCell = cell;
+                                        nearestDistance = distance;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                return nearestCell;
+            }
+
+            /**
+             * Returns the cell at the given coordinates.
+             *
+             * @param x x-coordinate of the cell position
+             * @param y y-coordinate of the cell position
+             * @return cell at the given coordinates
+             */
+            public Cell getCell(int x, int y) {
+                return new Cell(this, index(x, y));
+            }
+
+            /**
+             * Returns the cell at the given position.
+             *
+             * @param pos position of the cell
+             * @return cell at the given position
+             */
+            public Cell getCell(Pair<Integer, Integer> pos) {
+                return getCell(pos.first, pos.second);
+            }
+
+            /**
+             * Returns the cell at the given index.
+             *
+             * @param index index of the cell position, see
+             *              {@link #index(int, int)}
+             * @return cell at the given index
+             */
+            public Cell getCell(int index) {
+                return new Cell(this, index);
+            }
+
+            /**
+             * Returns the exact clone of the map. Checkpoints of the map are
+             * not copied.
+             *
+             * @return the exact clone of the map.
+             */
+            public Map clone() {
+                return new Map(this);
+            }
+
+            /**
+             * Method opens a checkpoint of the map state. Until the checkpoint
+             * is rolled back, the map records the old values of the changed
+             * cells, so only the cells that are actually changed are copied.
+             *
+             * @return checkpoint to pass to {@link #rollback(int)}
+             */
+            public int checkpoint() {
+                openCheckpoints++;
+                return undoLogSize;
+            }
+
+            /**
+             * Method restores the map state to the given checkpoint and
+             * closes it. Checkpoints must be rolled back in the reverse order
+             * of opening.
+             *
+             * @param checkpoint checkpoint returned by {@link #checkpoint()}
+             */
+            public void rollback(int checkpoint) {
+                while (undoLogSize > checkpoint) {
+                    undoLogSize -= 3;
+                    int i = undoLog[undoLogSize + 1];
+                    int oldValue = undoLog[undoLogSize + 2];
+                    switch (undoLog[undoLogSize]) {
+                        case LOG_FLAGS:
+                            flags[i] = (byte) oldValue;
+                            break;
+                        case LOG_ITEMS:
+                            if ((items[i] == 0) != (oldValue == 0)) {
+                                if (oldValue == 0) {
+                                    itemCells.remove(i, toX(i), toY(i));
+                                }
+                                else {
+                                    itemCells.add(i, toX(i), toY(i));
+                                }
+                            }
+                            items[i] = oldValue;
+                            break;
+                        case LOG_DISTANCES:
+                            distances[i] = oldValue;
+                            break;
+                        case LOG_PERCEPTION_ZONES:
+                            perceptionZones[i] = (perceptionZones[i] & ~0xFFFFFFFFL) | (oldValue & 0xFFFFFFFFL);
+                            break;
+                        case LOG_PERCEPTION_ZONES + 1:
+                            perceptionZones[i] = (perceptionZones[i] & 0xFFFFFFFFL) | ((long) oldValue << 32);
+                            break;
+                        case LOG_ENEMY_CELLS:
+                            enemyCells[i] = (enemyCells[i] & ~0xFFFFFFFFL) | (oldValue & 0xFFFFFFFFL);
+                            break;
+                        case LOG_ENEMY_CELLS + 1:
+                            enemyCells[i] = (enemyCells[i] & 0xFFFFFFFFL) | ((long) oldValue << 32);
+                            break;
+                        default:
+                            setHeuristicsGoal(oldValue);
+                    }
+                }
+                openCheckpoints--;
+            }
+
+            private void record(int kind, int index, int oldValue) {
+                if (openCheckpoints == 0) {
+                    return;
+                }
+                if (metrics != null) {
+                    metrics.increment(SolverMetrics.Counter.UNDO_LOG_RECORDS);
+                }
+                if (undoLogSize + 3 > undoLog.length) {
+                    undoLog = Arrays.copyOf(undoLog, max(2 * undoLog.length, 48));
+                }
+                undoLog[undoLogSize] = kind;
+                undoLog[undoLogSize + 1] = index;
+                undoLog[undoLogSize + 2] = oldValue;
+                undoLogSize += 3;
+            }
+
+            /**
+             * Method marks the cell at the given position as visited and mark
+             * the neighbor cells at the perception as seen.
+             *
+             * @param x x-coordinate of the cell position
+             * @param y y-coordinate of the cell position
+             * @param perception perception type of the actor, see
+             *                   {@link Stencil#perception(int)}
+             */
+            public void visitCell(int x, int y, int perception) {
+                visitCell(x, y, Stencil.perception(perception));
+            }
+
+            /**
+             * Method marks the cell at the given position as visited and mark
+             * the cells of the perception zone around it as seen.
+             *
+             * @param x x-coordinate of the cell position
+             * @param y y-coordinate of the cell position
+             * @param perception perception zone of the actor
+             */
+            public void visitCell(int x, int y, Stencil perception) {
+                if (metrics != null) {
+                    metrics.increment(SolverMetrics.Counter.VISITED_CELLS);
+                }
+                int radius = perception.radius;
+                if (x >= radius && y >= radius && x + radius < this.sizeX && y + radius < this.sizeY) {
+                    // the zone is inside the map, so the cells are not clipped
+                    int[] cells = perception.cells;
+                    for (int cell = 0; cell < cells.length; cell += 2) {
+                        int x_ = x + cells[cell];
+                        int y_ = y + cells[cell + 1];
+                        makeCellSeen(y_ * this.sizeX + x_, x_, y_);
+                    }
+                }
+                else {
+                    int[] spans = perception.spans;
+                    for (int span = 0; span < spans.length; span += 3) {
+                        int y_ = y + spans[span];
+                        if (y_ >= 0 && y_ < this.sizeY) {
+                            int rowStart = y_ * this.sizeX;
+                            int toX = Math.min(x + spans[span + 2], this.sizeX - 1);
+                            for (int x_ = max(x + spans[span + 1], 0); x_ <= toX; x_++) {
+                                makeCellSeen(rowStart + x_, x_, y_);
+                            }
+                        }
+                    }
+                }
+                setFlag(index(x, y), VISITED);
+            }
+
+            private void makeCellSeen(int i, int x, int y) {
+                if ((flags[i] & SEEN) == 0) {
+                    makeNewCellSeen(i, x, y);
+                }
+            }
+
+            private void makeNewCellSeen(int i, int x, int y) {
+                setFlag(i, SEEN);
+                hasSeenCells = true;
+                if (metrics != null) {
+                    metrics.increment(SolverMetrics.Counter.SEEN_CELLS);
+                }
+                if (seenListener != null) {
+                    seenListener.onCellSeen(x, y);
+                }
+                if (!isUnderPerception(i)) {
+                    // the cell is seen and safe, so its neighbors under perception are on the border now
+                    int fromX = max(x - 1, 0);
+                    int toX = Math.min(x + 1, sizeX - 1);
+                    for (int y_ = max(y - 1, 0); y_ <= y + 1 && y_ < sizeY; y_++) {
+                        int rowStart = y_ * sizeX;
+                        for (int x_ = fromX; x_ <= toX; x_++) {
+                            int neighbor = rowStart + x_;
+                            if ((flags[neighbor] & BORDER_PERCEPTION) == 0 && isUnderPerception(neighbor)) {
+                                setFlag(neighbor, BORDER_PERCEPTION);
+                            }
+                        }
+                    }
+                }
+            }
+
+            private void updateBorder(int x, int y, int radius) {
+                // recalculates the border of the perception zones in the square of the given radius, it is needed
+                // only if the cells become under perception after some cells are seen
+                for (int y_ = max(y - radius, 0); y_ <= y + radius && y_ < sizeY; y_++) {
+                    for (int x_ = max(x - radius, 0); x_ <= x + radius && x_ < sizeX; x_++) {
+                        int i = index(x_, y_);
+                        if (isUnderPerception(i) && hasSeenSafeNeighbor(x_, y_)) {
+                            setFlag(i, BORDER_PERCEPTION);
+                        }
+                        else {
+                            clearFlag(i, BORDER_PERCEPTION);
+                        }
+                    }
+                }
+            }
+
+            private boolean hasSeenSafeNeighbor(int x, int y) {
+                for (int y_ = max(y - 1, 0); y_ <= y + 1 && y_ < sizeY; y_++) {
+                    for (int x_ = max(x - 1, 0); x_ <= x + 1 && x_ < sizeX; x_++) {
+                        int i = index(x_, y_);
+                        if ((flags[i] & SEEN) != 0 && !isUnderPerception(i)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * Method marks the cell at the given position as visited and mark
+             * the neighbor cells at the perception as seen.
+             *
+             * @param pos position to visit
+             * @param perception perception type of the actor
+             */
+            public void visitCell(Pair<Integer, Integer> pos, int perception) {
+                visitCell(pos.first, pos.second, perception);
+            }
+
+            /**
+             * Method marks the cell at the given index as visited and mark
+             * the neighbor cells at the perception as seen.
+             *
+             * @param index index of the position to visit
+             * @param perception perception type of the actor
+             */
+            public void visitCell(int index, int perception) {
+                visitCell(toX(index), toY(index), perception);
+            }
+
+            /**
+             * Method marks the cell at the given index as visited and mark
+             * the cells of the perception zone around it as seen.
+             *
+             * @param index index of the position to visit
+             * @param perception perception zone of the actor
+             */
+            public void visitCell(int index, Stencil perception) {
+                visitCell(toX(index), toY(index), perception);
+            }
+
+            /**
+             * Returns the index of the given coordinates. Cells are indexed
+             * row by row, so the index is y * sizeX + x.
+             *
+             * @param x x-coordinate of the cell position
+             * @param y y-coordinate of the cell position
+             * @return index of the cell position
+             * @throws IndexOutOfBoundsException if the position is outside
+             *                                   of the map
+             */
+            public int index(int x, int y) {
+                if (x < 0 || x >= sizeX || y < 0 || y >= sizeY) {
+                    throw new IndexOutOfBoundsException("Position: (" + x + ", " + y + "), size: " + sizeX + "x" +
+                                                        sizeY);
+                }
+                return y * sizeX + x;
+            }
+
+            /**
+             * Returns x-coordinate of the cell at the given index.
+             *
+             * @param index index of the cell position
+             * @return x-coordinate of the cell position
+             */
+            public int toX(int index) {
+                return index % sizeX;
+            }
+
+            /**
+             * Returns y-coordinate of the cell at the given index.
+             *
+             * @param index index of the cell position
+             * @return y-coordinate of the cell position
+             */
+            public int toY(int index) {
+                return index / sizeX;
+            }
+
+            /**
+             * Returns the position of the cell at the given index.
+             *
+             * @param index index of the cell position
+             * @return position of the cell
+             */
+            public Pair<Integer, Integer> toPair(int index) {
+                return new Pair<>(toX(index), toY(index));
+            }
+
+            boolean hasFlag(int index, byte flag) {
+                return (flags[index] & flag) != 0;
+            }
+
+            /**
+             * Returns if the cell is under perception of an enemy. The cells
+             * of the enemies are under perception too.
+             */
+            boolean isUnderPerception(int index) {
+                return (perceptionZones[index >>> 6] & (1L << index)) != 0;
+            }
+
+            /**
+             * Returns if the actor dies at the cell: the enemy catches the
+             * actor at its cell and, if the actor has no cloak, at the cells
+             * under its perception.
+             */
+            boolean isDeadly(int index, boolean hasCloak) {
+                long[] bits = hasCloak ? enemyCells : perceptionZones;
+                return (bits[index >>> 6] & (1L << index)) != 0;
+            }
+
+            void setFlag(int index, byte flag) {
+                if ((flags[index] & flag) != flag) {
+                    record(LOG_FLAGS, index, flags[index]);
+                    flags[index] |= flag;
+                }
+            }
+
+            void clearFlag(int index, byte flag) {
+                if ((flags[index] & flag) != 0) {
+                    record(LOG_FLAGS, index, flags[index]);
+                    flags[index] &= ~flag;
+                }
+            }
+
+            void setDistance(int index, int distance) {
+                if (distances[index] != distance) {
+                    record(LOG_DISTANCES, index, distances[index]);
+                    distances[index] = distance;
+                }
+            }
+
+            int score(int index) {
+                return heuristics(index) + distances[index];
+            }
+
+            boolean containsAny(int index, int itemsMask) {
+                return (items[index] & itemsMask) != 0;
+            }
+
+            /**
+             * Registers the kind of the items and returns its mask. Kinds
+             * that are equal get the same mask. At most 32 kinds can be
+             * registered.
+             *
+             * @param kind kind of the items, e.g. {@link BookFinding#BOOK}
+             * @return mask with the single bit of the kind
+             */
+            public static int registerItemKind(Object kind) {
+                int mask = itemMask(kind);
+                if (mask != 0) {
+                    return mask;
+                }
+                synchronized (kindsLock) {
+                    Object[] kinds = itemKinds;
+                    mask = itemMask(kind);
+                    if (mask == 0) {
+                        if (kinds.length == Integer.SIZE) {
+                            throw new IllegalStateException("Too many item kinds, can not register " + kind);
+                        }
+                        Object[] newKinds = Arrays.copyOf(kinds, kinds.length + 1);
+                        newKinds[kinds.length] = kind;
+                        itemKinds = newKinds;
+                        mask = 1 << kinds.length;
+                    }
+                    return mask;
+                }
+            }
+
+            /**
+             * Returns the mask of the registered kind of the items, or 0 if
+             * the kind is not registered. The kinds are compared by equals.
+             *
+             * @param kind kind of the items
+             * @return mask with the single bit of the kind or 0
+             */
+            public static int itemMask(Object kind) {
+                Object[] kinds = itemKinds;
+                for (int bit = 0; bit < kinds.length; bit++) {
+                    if (Objects.equals(kinds[bit], kind)) {
+                        return 1 << bit;
+                    }
+                }
+                return 0;
+            }
+
+            /**
+             * Registers the kind of the enemies with the perception zone of
+             * the given radius and returns its item mask, see {@link
+             * #registerItemKind(Object)}.
+             *
+             * @param kind kind of the enemies, e.g. {@link BookFinding#FILCH}
+             * @param perception perception distance of the enemies of the kind
+             * @return mask with the single bit of the kind
+             * @throws IllegalArgumentException if the kind is already
+             *                                  registered with another zone
+             */
+            public static int registerEnemyKind(Object kind, int perception) {
+                return registerEnemyKind(kind, Stencil.chebyshev(perception));
+            }
+
+            /**
+             * Registers the kind of the enemies with the given perception
+             * zone and returns its item mask. The kind that is already
+             * registered as the kind of the enemies keeps its mask if the
+             * zone is equal to its zone.
+             *
+             * @param kind kind of the enemies
+             * @param zone perception zone of the enemies of the kind
+             * @return mask with the single bit of the kind
+             * @throws IllegalArgumentException if the kind is already
+             *                                  registered with another zone
+             */
+            public static int registerEnemyKind(Object kind, Stencil zone) {
+                int mask = itemMask(kind);
+                if (mask != 0 && (enemyKindsMask & mask) != 0) {
+                    return checkEnemyZone(kind, mask, zone);
+                }
+                synchronized (kindsLock) {
+                    mask = registerItemKind(kind);
+                    if ((enemyKindsMask & mask) != 0) {
+                        return checkEnemyZone(kind, mask, zone);
+                    }
+                    Stencil[] zones = enemyZones.clone();
+                    zones[Integer.numberOfTrailingZeros(mask)] = zone;
+                    enemyZones = zones;
+                    enemyKindsMask |= mask;
+                    return mask;
+                }
+            }
+
+            private static int checkEnemyZone(Object kind, int mask, Stencil zone) {
+                if (!enemyZones[Integer.numberOfTrailingZeros(mask)].equals(zone)) {
+                    throw new IllegalArgumentException("The kind of the enemy is registered with another zone: " +
+                                                       kind);
+                }
+                return mask;
+            }
+
+            /**
+             * Returns the mask of the registered kinds of the enemies.
+             */
+            public static int enemyKindsMask() {
+                return enemyKindsMask;
+            }
+
+            /**
+             * Returns the perception zone of the registered kind of the
+             * enemies by its mask.
+             *
+             * @param mask mask with the single bit of the kind
+             * @return perception zone of the kind
+             * @throws IllegalArgumentException if the kind is not registered
+             *                                  as the kind of the enemies
+             */
+            static Stencil enemyZone(int mask) {
+                if ((enemyKindsMask & mask) == 0) {
+                    throw new IllegalArgumentException("Unknown kind of the enemy: " + Integer.toBinaryString(mask));
+                }
+                return enemyZones[Integer.numberOfTrailingZeros(mask)];
+            }
+
+            /**
+             * Returns the registered kind of the items by its mask.
+             *
+             * @param mask mask with the single bit of the kind
+             * @return kind of the items
+             */
+            static Object itemKind(int mask) {
+                return itemKinds[Integer.numberOfTrailingZeros(mask)];
+            }
+
+            /**
+             * Returns the mask of the item kinds, unknown kinds are skipped.
+             *
+             * @param kinds kinds of the items
+             * @return mask of the given kinds
+             */
+            public static int itemsMask(Vector<Object> kinds) {
+                int mask = 0;
+                for (Object kind: kinds) {
+                    mask |= itemMask(kind);
+                }
+                return mask;
+            }
+
+            /**
+             * SeenListener interface describes the callback for the objects
+             * that have to track which cells of the map become seen.
+             */
+            public interface SeenListener {
+                /**
+                 * Method is called once for each cell when the cell becomes
+                 * seen.
+                 *
+                 * @param x x-coordinate of the cell position
+                 * @param y y-coordinate of the cell position
+                 */
+                void onCellSeen(int x, int y);
+            }
+
+            /**
+             * BucketGrid is the spatial index of the cells of the map that
+             * contain items. The map is split into the square buckets, and
+             * every bucket keeps the unordered list of its cells with items,
+             * so the queries about the items around a position read the
+             * buckets that overlap the area instead of all its cells. The
+             * lists of the buckets are allocated on the first item.
+             */
+            static final class BucketGrid {
+                /**
+                 * Side of the bucket in cells.
+                 */
+                static final int BUCKET_SIZE = 16;
+                final int bucketsX;
+                final int bucketsY;
+                final int[][] cells;
+                final int[] sizes;
+
+                BucketGrid(int sizeX, int sizeY) {
+                    this.bucketsX = (sizeX + BUCKET_SIZE - 1) / BUCKET_SIZE;
+                    this.bucketsY = (sizeY + BUCKET_SIZE - 1) / BUCKET_SIZE;
+                    this.cells = new int[bucketsX * bucketsY][];
+                    this.sizes = new int[bucketsX * bucketsY];
+                }
+
+                private BucketGrid(BucketGrid other) {
+                    this.bucketsX = other.bucketsX;
+                    this.bucketsY = other.bucketsY;
+                    this.cells = new int[other.cells.length][];
+                    for (int bucket = 0; bucket < cells.length; bucket++) {
+                        if (other.cells[bucket] != null) {
+                            this.cells[bucket] = other.cells[bucket].clone();
+                        }
+                    }
+                    this.sizes = other.sizes.clone();
+                }
+
+                BucketGrid copy() {
+                    return new BucketGrid(this);
+                }
+
+                void add(int cell, int x, int y) {
+                    int bucket = (y / BUCKET_SIZE) * bucketsX + x / BUCKET_SIZE;
+                    if (cells[bucket] == null) {
+                        cells[bucket] = new int[4];
+                    }
+                    else if (sizes[bucket] == cells[bucket].length) {
+                        cells[bucket] = Arrays.copyOf(cells[bucket], 2 * sizes[bucket]);
+                    }
+                    cells[bucket][sizes[bucket]++] = cell;
+                }
+
+                void remove(int cell, int x, int y) {
+                    int bucket = (y / BUCKET_SIZE) * bucketsX + x / BUCKET_SIZE;
+                    int[] bucketCells = cells[bucket];
+                    for (int j = sizes[bucket] - 1; j >= 0; j--) {
+                        if (bucketCells[j] == cell) {
+                            bucketCells[j] = bucketCells[--sizes[bucket]];
+                            return;
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Stencil class describes the shape of a zone around a center
+             * cell, e.g. the perception zone of the actor or of an enemy. The
+             * shape is built once and stored as the table of the offsets of
+             * its cells and as the spans of its rows, so the zone is applied
+             * to the map without checking each cell of its bounding square.
+             * The offsets are applied as is if the zone is inside the map,
+             * and the spans are clipped to the map otherwise. Stencils are
+             * immutable, and the perception zones and the squares of small
+             * radiuses are cached.
+             */
+            public static final class Stencil {
+                private static final Stencil[] chebyshevStencils = new Stencil[16];
+                private static final Stencil[] perceptionStencils = new Stencil[16];
+
+                /**
+                 * Radius of the bounding square of the zone.
+                 */
+                public final int radius;
+                // cells are [dx, dy] pairs relative to the center in the order the cells are applied
+                final int[] cells;
+                // spans are [dy, fromDx, toDx] triples of the same cells, a span covers the consecutive cells from
+                // fromDx to toDx of the row dy
+                final int[] spans;
+
+                private Stencil(int radius, Shape shape) {
+                    this(radius, offsetsOf(radius, shape));
+                }
+
+                private Stencil(int radius, int[] offsets) {
+                    // offsets are [dx, dy] pairs in the order the cells are applied, consecutive cells of a row are
+                    // merged into spans
+                    if (radius < 0) {
+                        throw new IllegalArgumentException("Invalid radius: " + radius);
+                    }
+                    this.radius = radius;
+                    IntList spans = new IntList();
+                    for (int i = 0; i < offsets.length; i += 2) {
+                        int size = spans.size();
+                        if (size > 0 && spans.get(size - 3) == offsets[i + 1] && spans.last() == offsets[i] - 1) {
+                            spans.removeLast();
+                        }
+                        else {
+                            spans.add(offsets[i + 1]);
+                            spans.add(offsets[i]);
+                        }
+                        spans.add(offsets[i]);
+                    }
+                    this.cells = offsets;
+                    this.spans = spans.toArray();
+                }
+
+                private static int[] offsetsOf(int radius, Shape shape) {
+                    // returns the offsets of the cells of the shape row by row
+                    IntList offsets = new IntList();
+                    for (int dy = -radius; dy <= radius; dy++) {
+                        for (int dx = -radius; dx <= radius; dx++) {
+                            if (shape.contains(dx, dy)) {
+                                offsets.add(dx);
+                                offsets.add(dy);
+                            }
+                        }
+                    }
+                    return offsets.toArray();
+                }
+
+                private interface Shape {
+                    boolean contains(int dx, int dy);
+                }
+
+                /**
+                 * Returns if the object is the stencil of the same cells
+                 * applied in the same order.
+                 *
+                 * @param o object to compare
+                 * @return if the object is equal to the stencil
+                 */
+                @Override
+                public boolean equals(Object o) {
+                    if (this == o) return true;
+                    if (o == null || getClass() != o.getClass()) return false;
+                    Stencil stencil = (Stencil) o;
+                    return radius == stencil.radius && Arrays.equals(cells, stencil.cells);
+                }
+
+                /**
+                 * Returns hash code of the stencil that is consistent with
+                 * {@link #equals(Object)}.
+                 *
+                 * @return hash code of the stencil
+                 */
+                @Override
+                public int hashCode() {
+                    return 31 * radius + Arrays.hashCode(cells);
+                }
+
+                /**
+                 * Returns the zone of the cells at Chebyshev distance
+                 * max(dx, dy) at most radius from the center, i.e. the square.
+                 *
+                 * @param radius radius of the zone
+                 * @return stencil of the zone
+                 */
+                public static Stencil chebyshev(int radius) {
+                    if (radius >= 0 && radius < chebyshevStencils.length) {
+                        Stencil stencil = chebyshevStencils[radius];
+                        if (stencil == null) {
+                            stencil = new Stencil(radius, (dx, dy) -> true);
+                            chebyshevStencils[radius] = stencil;
+                        }
+                        return stencil;
+                    }
+                    return new Stencil(radius, (dx, dy) -> true);
+                }
+
+                /**
+                 * Returns the zone of the cells at Manhattan distance dx + dy
+                 * at most radius from the center, i.e. the diamond.
+                 *
+                 * @param radius radius of the zone
+                 * @return stencil of the zone
+                 */
+                public static Stencil manhattan(int radius) {
+                    return new Stencil(radius, (dx, dy) -> abs(dx) + abs(dy) <= radius);
+                }
+
+                /**
+                 * Returns the perception zone of the actor for the given
+                 * perception variant. Variant 1 is the 3x3 square. Variant 2
+                 * is the center and the cells at distance 2 in the directions
+                 * of the axes: the 5x5 ring without its corners. Other
+                 * variants are the squares of the given radius.
+                 *
+                 * @param perception perception variant of the actor
+                 * @return stencil of the zone
+                 */
+                public static Stencil perception(int perception) {
+                    if (perception >= 0 && perception < perceptionStencils.length) {
+                        Stencil stencil = perceptionStencils[perception];
+                        if (stencil == null) {
+                            stencil = createPerception(perception);
+                            perceptionStencils[perception] = stencil;
+                        }
+                        return stencil;
+                    }
+                    return createPerception(perception);
                 }
-            }
 
-            /**
-             * Method marks the cell at the given position as visited and mark
-             * the neighbor cells at the perception as seen.
-             *
-             * @param pos position to visit
-             * @param perception perception type of the actor
-             */
-            public void visitCell(Pair<Integer, Integer> pos, int perception) {
-                visitCell(pos.first, pos.second, perception);
+                private static Stencil createPerception(int perception) {
+                    if (perception == 2) {
+                        return new Stencil(2, (dx, dy) -> (dx == 0 && dy == 0) ||
+                                                          (max(abs(dx), abs(dy)) == 2 && abs(dx) != abs(dy)));
+                    }
+                    return chebyshev(perception);
+                }
             }
 
             /**
-             * Cell class describes map cell. It encapsulates objects
-             * contained, information about abstract distance, heuristic and
-             * about visit, seen and perception.
+             * Cell class describes map cell. It is a view of the map state at
+             * one position: objects contained, information about abstract
+             * distance, heuristic and about visit, seen and perception.
              */
             public static class Cell {
                 /**
                  * Constant that represent infinity distance.
                  */
-                public static int INFINITELY_FAR = 9999;
+                public static final int INFINITELY_FAR = Integer.MAX_VALUE / 2;
+                private final Map map;
+                private final int index;
+
+                /**
+                 * Constructor for the cell view at the given index of the map.
+                 */
+                Cell(Map map, int index) {
+                    this.map = map;
+                    this.index = index;
+                }
+
+                /**
+                 * Returns if the cell is under perception of an enemy.
+                 */
+                public boolean isUnderPerception() {
+                    return map.isUnderPerception(index);
+                }
+
+                /**
+                 * Returns if the cell was seen by the actor.
+                 */
+                public boolean isSeen() {
+                    return map.hasFlag(index, SEEN);
+                }
+
+                /**
+                 * Returns if the cell is under perception and is on the border:
+                 * one of its neighbors is seen and is not under perception.
+                 */
+                public boolean isBorderPerception() {
+                    return map.hasFlag(index, BORDER_PERCEPTION);
+                }
+
+                /**
+                 * Returns if the cell was visited by actor before.
+                 */
+                public boolean isVisited() {
+                    return map.hasFlag(index, VISITED);
+                }
+
+                /**
+                 * Returns abstract heuristic value.
+                 */
+                public int getHeuristics() {
+                    return map.heuristics(index);
+                }
+
                 /**
-                 * If the cell is under perception of an enemy.
+                 * Returns abstract distance to the cell.
                  */
-                public boolean isUnderPerception = false;
+                public int getDistance() {
+                    return map.distances[index];
+                }
+
                 /**
-                 * If the cell was seen by the actor.
+                 * Sets abstract distance to the cell.
+                 *
+                 * @param distance new distance
                  */
-                public boolean isSeen = false;
+                public void setDistance(int distance) {
+                    map.setDistance(index, distance);
+                }
+
                 /**
-                 * If the cell is under perception and is on the border
+                 * Returns the objects inside the cell.
+                 *
+                 * @return new container with the objects inside the cell
                  */
-                public boolean isBorderPerception = false;
+                public Vector<Object> getContainer() {
+                    Vector<Object> container = new Vector<>();
+                    Object[] kinds = itemKinds;
+                    for (int i = 0; i < kinds.length; i++) {
+                        if ((map.items[index] & (1 << i)) != 0) {
+                            container.add(kinds[i]);
+                        }
+                    }
+                    return container;
+                }
+
                 /**
-                 * If the cell was visited by actor before.
+                 * Returns if the equal object is contained inside the cell.
+                 *
+                 * @param obj object to check
+                 * @return if the equal object is contained inside the cell
                  */
-                public boolean isVisited = false;
+                public boolean contains(Object obj) {
+                    int itemMask = itemMask(obj);
+                    return itemMask != 0 && map.containsAny(index, itemMask);
+                }
+
                 /**
-                 * Abstract heuristic value.
+                 * Returns if at least one object is equal to one contained
+                 * inside the cell.
+                 *
+                 * @param objs objects to check
+                 * @return if at least one object is equal to one contained
+                 * inside the cell
                  */
-                public int heuristics = 0;
+                public boolean contains(Vector<Object> objs) {
+                    return map.containsAny(index, itemsMask(objs));
+                }
+
                 /**
-                 * Abstract distance to the cell.
+                 * Returns if at least one item of the given mask is contained
+                 * inside the cell.
+                 *
+                 * @param itemsMask mask of the item kinds, see
+                 *                  {@link Map#registerItemKind(Object)}
+                 * @return if at least one item of the mask is contained inside
+                 * the cell
                  */
-                public int distance = INFINITELY_FAR;
+                public boolean contains(int itemsMask) {
+                    return map.containsAny(index, itemsMask);
+                }
+
                 /**
-                 * Container for the objects inside the cell.
+                 * Returns the sum of heuristic and the distance.
+                 *
+                 * @return the sum of heuristic and the distance
                  */
-                public Vector<Object> container;
+                public int score() {
+                    return map.score(index);
+                }
+            }
+        }
+
+        /**
+         * IndexedHeap is a binary min-heap over integer ids (e.g. cell
+         * indices) in range [0, capacity). Each id is stored at most once and
+         * the heap knows the position of every id, so the key of an id can be
+         * changed and an id can be removed in O(log n).
+         */
+        static class IndexedHeap {
+            private final int[] heap;
+            private final int[] positions;
+            private final long[] keys;
+            private int size = 0;
+
+            /**
+             * Constructor for the IndexedHeap that initializes an empty heap.
+             *
+             * @param capacity number of possible ids
+             */
+            IndexedHeap(int capacity) {
+                this.heap = new int[capacity];
+                this.positions = new int[capacity];
+                this.keys = new long[capacity];
+                Arrays.fill(this.positions, -1);
+            }
+
+            boolean isEmpty() {
+                return size == 0;
+            }
+
+            int capacity() {
+                return heap.length;
+            }
+
+            /**
+             * Removes all the ids from the heap in O(size).
+             */
+            void clear() {
+                for (int i = 0; i < size; i++) {
+                    positions[heap[i]] = -1;
+                }
+                size = 0;
+            }
+
+            boolean contains(int id) {
+                return positions[id] >= 0;
+            }
+
+            long key(int id) {
+                return keys[id];
+            }
+
+            /**
+             * Inserts the id with the given key or changes the key if the id
+             * is already in the heap.
+             *
+             * @param id id to insert
+             * @param key key of the id, the less key goes first
+             */
+            void push(int id, long key) {
+                keys[id] = key;
+                int i = positions[id];
+                if (i < 0) {
+                    i = size++;
+                    heap[i] = id;
+                    positions[id] = i;
+                    siftUp(i);
+                }
+                else {
+                    siftUp(i);
+                    siftDown(positions[id]);
+                }
+            }
+
+            /**
+             * Removes and returns the id with min key. The heap must not be
+             * empty.
+             *
+             * @return id with min key
+             */
+            int pop() {
+                int id = heap[0];
+                removeAt(0);
+                return id;
+            }
+
+            void remove(int id) {
+                int i = positions[id];
+                if (i >= 0) {
+                    removeAt(i);
+                }
+            }
+
+            private void removeAt(int i) {
+                positions[heap[i]] = -1;
+                size--;
+                if (i != size) {
+                    int last = heap[size];
+                    heap[i] = last;
+                    positions[last] = i;
+                    siftUp(i);
+                    siftDown(positions[last]);
+                }
+            }
+
+            private void siftUp(int i) {
+                int id = heap[i];
+                long key = keys[id];
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    int parentId = heap[parent];
+                    if (keys[parentId] <= key) {
+                        break;
+                    }
+                    heap[i] = parentId;
+                    positions[parentId] = i;
+                    i = parent;
+                }
+                heap[i] = id;
+                positions[id] = i;
+            }
+
+            private void siftDown(int i) {
+                int id = heap[i];
+                long key = keys[id];
+                int half = size >>> 1;
+                while (i < half) {
+                    int child = 2 * i + 1;
+                    int childId = heap[child];
+                    int right = child + 1;
+                    if (right < size && keys[heap[right]] < keys[childId]) {
+                        child = right;
+                        childId = heap[right];
+                    }
+                    if (key <= keys[childId]) {
+                        break;
+                    }
+                    heap[i] = childId;
+                    positions[childId] = i;
+                    i = child;
+                }
+                heap[i] = id;
+                positions[id] = i;
+            }
+        }
+    }
+
+    /**
+     * InputReader interface describes interface for the input readers ot the
+     * Book Finding problem. It describes the format of output of methods.
+     */
+    public interface InputReader {
+        /**
+         * Method should return initial conditions for the Book Finding
+         * problem. Initial conditions include the initialized map with enemies
+         * and objects, actor's perception, his initial position and position
+         * of the exit.
+         *
+         * @return [Map initMap, int actorPerception,
+         *         Pair< Integer, Integer> initActorPos,
+         *         Pair< Integer, Integer> exitPos] - initial conditions for
+         *         the Book Finding problem
+         */
+        Vector<Object> readInput();
+    }
+
+    /**
+     * InputReader that reads the initial conditions from the console or
+     * from another stream. The conditions are the positions of the actor,
+     * Filch, the cat, the book, the cloak and the exit in the form [x,y]
+     * followed by the actor's perception, e.g.
+     * <pre>
+     * [0,0] [4,2] [2,7] [7,4] [0,8] [8,8]
+     * 1
+     * </pre>
+     * The stream may hold many conditions one after another, every call of
+     * {@link #readInput()} reads the next ones. The numbers are parsed right
+     * from the bytes of the large buffer: the brackets, the commas and the
+     * whitespace separate them, and any other byte is an error. The stream
+     * is not closed by the reader.
+     */
+    public static class ConsoleInputReader implements InputReader {
+        private static final int NUMBERS_NUMBER = 13;
+        private final int sizeX, sizeY;
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int position = 0, limit = 0;
+        private final int[] numbers = new int[NUMBERS_NUMBER];
+
+        /**
+         * Constructor for the reader of the conditions on the 9x9 map.
+         */
+        public ConsoleInputReader() {
+            this(9, 9);
+        }
+
+        /**
+         * Constructor for the reader of the conditions on the map of the
+         * given size.
+         *
+         * @param sizeX size of the first dimension of the map
+         * @param sizeY size of the second dimension of the map
+         */
+        public ConsoleInputReader(int sizeX, int sizeY) {
+            this(System.in, sizeX, sizeY);
+        }
+
+        /**
+         * Constructor for the reader of the conditions on the map of the
+         * given size from the given stream, e.g. of a file.
+         *
+         * @param in stream of the conditions
+         * @param sizeX size of the first dimension of the map
+         * @param sizeY size of the second dimension of the map
+         */
+        public ConsoleInputReader(InputStream in, int sizeX, int sizeY) {
+            this.in = in;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+        }
+
+        /**
+         * Returns if the stream has more conditions, i.e. anything but the
+         * separators is left.
+         *
+         * @throws UncheckedIOException if the stream can not be read
+         */
+        public boolean hasNext() {
+            return skipSeparators() >= 0;
+        }
+
+        /**
+         * Returns the next initial conditions read from the stream.
+         *
+         * @throws NoSuchElementException if the stream ends before the
+         *                                conditions
+         * @throws InputMismatchException if the stream has anything but
+         *                                the numbers and the separators
+         * @throws UncheckedIOException if the stream can not be read
+         */
+        @Override
+        public Vector<Object> readInput() {
+            for (int i = 0; i < NUMBERS_NUMBER; i++) {
+                numbers[i] = nextInt();
+            }
+            int initActorX = numbers[0];
+            int initActorY = numbers[1];
+            int exitX = numbers[10];
+            int exitY = numbers[11];
+            int actorPerception = numbers[12];
+
+            BookFinding.Map initMap = new BookFinding.Map(sizeY, sizeX);
+            initMap.addEnemies(BookFinding.FILCH_MASK, numbers[2], numbers[3]);
+            initMap.addEnemies(BookFinding.CAT_MASK, numbers[4], numbers[5]);
+            initMap.addItems(BookFinding.ACTOR_MASK, initActorX, initActorY);
+            initMap.addItems(BookFinding.BOOK_MASK, numbers[6], numbers[7]);
+            initMap.addItems(BookFinding.CLOAK_MASK, numbers[8], numbers[9]);
+            initMap.addItems(BookFinding.EXIT_MASK, exitX, exitY);
+
+            Vector<Object> result = new Vector<>();
+            result.add(initMap);
+            result.add(actorPerception);
+            result.add(new Pair<>(initActorX, initActorY));
+            result.add(new Pair<>(exitX, exitY));
+            return result;
+        }
+
+        private int nextInt() {
+            int b = skipSeparators();
+            if (b < 0) {
+                throw new NoSuchElementException("The input ended before the conditions");
+            }
+            boolean isNegative = b == '-';
+            if (isNegative) {
+                position++;
+                b = peek();
+            }
+            if (b < '0' || b > '9') {
+                throw unexpectedSymbol(b);
+            }
+            long value = 0;
+            while (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw new InputMismatchException("Too large number in the input");
+                }
+                position++;
+                b = peek();
+            }
+            if (b >= 0 && !isSeparator(b)) {
+                throw unexpectedSymbol(b);
+            }
+            return (int) (isNegative ? -value : value);
+        }
+
+        private static InputMismatchException unexpectedSymbol(int b) {
+            // bytes outside of ASCII are shown by their codes, they are only parts of the symbols
+            String symbol = b < 0 ? "end" : b < 0x80 ? "'" + (char) b + "'" : String.format("byte 0x%02X", b);
+            return new InputMismatchException("Unexpected symbol in the input: " + symbol);
+        }
+
+        private int skipSeparators() {
+            // returns the first byte after the separators without taking it, or -1 at the end of the stream
+            int b = peek();
+            while (b >= 0 && isSeparator(b)) {
+                position++;
+                b = peek();
+            }
+            return b;
+        }
+
+        private static boolean isSeparator(int b) {
+            return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '[' || b == ']' || b == ',';
+        }
+
+        private int peek() {
+            if (position == limit) {
+                try {
+                    limit = in.read(buffer, 0, buffer.length);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position] & 0xFF;
+        }
+    }
+
+    /**
+     * InputReader that make initial conditions automatically. The conditions
+     * are uniformly distributed over all the valid ones. Items are placed
+     * directly into the cells outside of the enemies perception, so the
+     * generator never builds a map that has to be thrown away. The map
+     * should leave room for the book and the exit outside of the enemies
+     * perception for some placement of the enemies, e.g. 1x5, 2x4 and 4x4
+     * maps are large enough and 3x3 map is not. Generator with a given seed
+     * always produces the same sequence of conditions. The generator is not
+     * thread-safe, each thread should use its own {@link #split()}.
+     */
+    public static class AutogenInputReader implements InputReader {
+        // perception zones of the enemies registered in the map
+        private static final BookFinding.Map.Stencil FILCH_ZONE = BookFinding.Map.enemyZone(BookFinding.FILCH_MASK);
+        private static final BookFinding.Map.Stencil CAT_ZONE = BookFinding.Map.enemyZone(BookFinding.CAT_MASK);
+        private final int sizeX, sizeY;
+        private final SplittableRandom random;
+        // cells where the items can not be placed, sorted disjoint intervals [from, to] of cell indices: the
+        // spans of the zones, the cells of the enemies and the book
+        private final int[] excludedFrom = new int[(FILCH_ZONE.spans.length + CAT_ZONE.spans.length) / 3 + 3];
+        private final int[] excludedTo = new int[excludedFrom.length];
+        private int excludedNumber = 0;
+
+        /**
+         * Constructor for the generator of the conditions on the 9x9 map.
+         */
+        public AutogenInputReader() {
+            this(9, 9);
+        }
+
+        /**
+         * Constructor for the generator of the conditions on the map of the
+         * given size.
+         *
+         * @param sizeX size of the first dimension of the map
+         * @param sizeY size of the second dimension of the map
+         */
+        public AutogenInputReader(int sizeX, int sizeY) {
+            this(sizeX, sizeY, new SplittableRandom());
+        }
+
+        /**
+         * Constructor for the reproducible generator of the conditions on the
+         * map of the given size.
+         *
+         * @param sizeX size of the first dimension of the map
+         * @param sizeY size of the second dimension of the map
+         * @param seed seed of the generator
+         */
+        public AutogenInputReader(int sizeX, int sizeY, long seed) {
+            this(sizeX, sizeY, new SplittableRandom(seed));
+        }
+
+        private AutogenInputReader(int sizeX, int sizeY, SplittableRandom random) {
+            if (sizeX <= 0 || sizeY <= 0) {
+                throw new IllegalArgumentException("Invalid map size: " + sizeX + "x" + sizeY);
+            }
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.random = random;
+            if (!hasValidConditions()) {
+                throw new IllegalArgumentException("No valid conditions on the map of size " + sizeX + "x" + sizeY);
+            }
+        }
+
+        private boolean hasValidConditions() {
+            // at least the book and the exit should be placed outside of the zones of the enemies for some placement
+            // of them, it is so when the zones together are smaller than the map, otherwise the map is small and all
+            // the placements are tried
+            long cellsNumber = (long) sizeX * sizeY;
+            if (cellsNumber - (FILCH_ZONE.cells.length + CAT_ZONE.cells.length) / 2 - 2 >= 2) {
+                return true;
+            }
+            for (int filch = 0; filch < cellsNumber; filch++) {
+                for (int cat = 0; cat < cellsNumber; cat++) {
+                    if (cellsNumber - excludeEnemies(filch % sizeX, filch / sizeX, cat % sizeX, cat / sizeX) >= 2) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns a new generator of the conditions on the map of the same
+         * size. Its sequence of conditions is independent of this generator
+         * and is reproducible if this generator is.
+         *
+         * @return new generator
+         */
+        public AutogenInputReader split() {
+            return new AutogenInputReader(sizeX, sizeY, random.split());
+        }
+
+        private int getRandomNumber(int min, int max) {
+            return random.nextInt(min, max + 1);
+        }
+
+        /**
+         * Returns initial conditions generated automatically.
+         */
+        @Override
+        public Vector<Object> readInput() {
+            Vector<Object> result = new Vector<>();
+            int initActorY = 0;
+            int initActorX = 0;
+            int actorPerception = getRandomNumber(1, 2);
+
+            // the book, the cloak and the exit not on the book can be placed into F free cells in F * F * (F - 1)
+            // ways, so the placement of the enemies is accepted with the probability proportional to it and the
+            // accepted conditions are uniform over all the valid ones. The attempts are independent, so their
+            // number is geometric with the mean of max F * F * (F - 1) over its mean over the placements: about
+            // 2.9 on 9x9 map, 1.1 on 33x33 map and closer to 1 on larger maps, a few hundred on the smallest valid
+            // maps. A draw without the retries would need the weights of all the placements, i.e. the square of the
+            // cells number for every map size.
+            long cellsNumber = (long) sizeX * sizeY;
+            double maxPlacementsNumber = placementsNumber(cellsNumber);
+            int filchX, filchY, catX, catY;
+            long freeCellsNumber;
+            do {
+                filchX = getRandomNumber(0, sizeX - 1);
+                filchY = getRandomNumber(0, sizeY - 1);
+                catX = getRandomNumber(0, sizeX - 1);
+                catY = getRandomNumber(0, sizeY - 1);
+                freeCellsNumber = cellsNumber - excludeEnemies(filchX, filchY, catX, catY);
+            } while (random.nextDouble() * maxPlacementsNumber >= placementsNumber(freeCellsNumber));
+
+            int book = getFreeCell(random.nextLong(freeCellsNumber));
+            int cloak = getFreeCell(random.nextLong(freeCellsNumber));
+            excludedFrom[excludedNumber] = book;
+            excludedTo[excludedNumber] = book;
+            excludedNumber++;
+            normalizeExcluded();
+            int exit = getFreeCell(random.nextLong(freeCellsNumber - 1));
+            int exitX = exit % sizeX;
+            int exitY = exit / sizeX;
+
+            BookFinding.Map initMap = new BookFinding.Map(sizeY, sizeX);
+            initMap.addEnemies(BookFinding.FILCH_MASK, filchX, filchY);
+            initMap.addEnemies(BookFinding.CAT_MASK, catX, catY);
+            initMap.addItems(BookFinding.ACTOR_MASK, initActorX, initActorY);
+            initMap.addItems(BookFinding.BOOK_MASK, book % sizeX, book / sizeX);
+            initMap.addItems(BookFinding.CLOAK_MASK, cloak % sizeX, cloak / sizeX);
+            initMap.addItems(BookFinding.EXIT_MASK, exitX, exitY);
+
+            result.add(initMap);
+            result.add(actorPerception);
+            result.add(new Pair<Integer, Integer>(initActorX, initActorY));
+            result.add(new Pair<Integer, Integer>(exitX, exitY));
+            return result;
+        }
 
-                /**
-                 * Constructor for the cell that initialozes empty container.
-                 */
-                public Cell() {
-                    this.container = new Vector<>();
-                }
+        private static double placementsNumber(long freeCellsNumber) {
+            return (double) freeCellsNumber * freeCellsNumber * (freeCellsNumber - 1);
+        }
 
-                /**
-                 * Returns the exact clone of the cell.
-                 *
-                 * @return the exact clone of the cell
-                 */
-                public Cell clone() {
-                    Cell cellCopy = new Cell();
-                    cellCopy.isUnderPerception = this.isUnderPerception;
-                    cellCopy.container.addAll(this.container);
-                    cellCopy.isBorderPerception = this.isBorderPerception;
-                    cellCopy.heuristics = this.heuristics;
-                    cellCopy.distance = this.distance;
-                    cellCopy.isSeen = this.isSeen;
-                    return cellCopy;
-                }
+        private long excludeEnemies(int filchX, int filchY, int catX, int catY) {
+            // excludes the cells of the enemies and of their zones, returns the number of excluded cells
+            excludedNumber = 0;
+            excludeZone(filchX, filchY, FILCH_ZONE);
+            excludeZone(catX, catY, CAT_ZONE);
+            return normalizeExcluded();
+        }
 
-                /**
-                 * Returns if the equal object is contained inside the cell.
-                 *
-                 * @param obj object to check
-                 * @return if the equal object is contained inside the cell
-                 */
-                public boolean contains(Object obj) {
-                    for (Object item: this.container) {
-                        if (item.equals(obj)) {
-                            return true;
-                        }
-                    }
-                    return false;
+        private void excludeZone(int x, int y, BookFinding.Map.Stencil zone) {
+            // the cells are the same as set under perception by Map.addEnemy
+            excludedFrom[excludedNumber] = y * sizeX + x;
+            excludedTo[excludedNumber] = y * sizeX + x;
+            excludedNumber++;
+            int[] spans = zone.spans;
+            for (int span = 0; span < spans.length; span += 3) {
+                int y_ = y + spans[span];
+                int fromX = max(x + spans[span + 1], 0);
+                int toX = Math.min(x + spans[span + 2], sizeX - 1);
+                if (y_ >= 0 && y_ < sizeY && fromX <= toX) {
+                    excludedFrom[excludedNumber] = y_ * sizeX + fromX;
+                    excludedTo[excludedNumber] = y_ * sizeX + toX;
+                    excludedNumber++;
                 }
+            }
+        }
 
-                /**
-                 * Returns if at least one object is equal to one contained
-                 * inside the cell.
-                 *
-                 * @param objs objects to check
-                 * @return if at least one object is equal to one contained
-                 * inside the cell
-                 */
-                public boolean contains(Vector<Object> objs) {
-                    // return if cell contains at least one object from objs
-                    for (Object obj: objs) {
-                        if (contains(obj)) {
-                            return true;
-                        }
-                    }
-                    return false;
+        private long normalizeExcluded() {
+            // sorts and merges the excluded intervals, returns the number of excluded cells
+            for (int i = 1; i < excludedNumber; i++) {
+                int from = excludedFrom[i];
+                int to = excludedTo[i];
+                int j = i - 1;
+                for (; j >= 0 && excludedFrom[j] > from; j--) {
+                    excludedFrom[j + 1] = excludedFrom[j];
+                    excludedTo[j + 1] = excludedTo[j];
                 }
-
-                /**
-                 * Returns the sum of heuristic and the distance.
-                 *
-                 * @return the sum of heuristic and the distance
-                 */
-                public int score() {
-                    return this.heuristics + this.distance;
+                excludedFrom[j + 1] = from;
+                excludedTo[j + 1] = to;
+            }
+            int merged = 0;
+            long excludedCellsNumber = 0;
+            for (int i = 0; i < excludedNumber; i++) {
+                if (merged > 0 && excludedFrom[i] <= excludedTo[merged - 1] + 1) {
+                    excludedCellsNumber -= excludedTo[merged - 1] - excludedFrom[merged - 1] + 1;
+                    excludedTo[merged - 1] = max(excludedTo[merged - 1], excludedTo[i]);
                 }
+                else {
+                    excludedFrom[merged] = excludedFrom[i];
+                    excludedTo[merged] = excludedTo[i];
+                    merged++;
+                }
+                excludedCellsNumber += excludedTo[merged - 1] - excludedFrom[merged - 1] + 1;
+            }
+            excludedNumber = merged;
+            return excludedCellsNumber;
+        }
+
+        private int getFreeCell(long n) {
+            // returns index of the n-th cell that is not excluded
+            long cell = n;
+            for (int i = 0; i < excludedNumber && excludedFrom[i] <= cell; i++) {
+                cell += excludedTo[i] - excludedFrom[i] + 1;
             }
+            return (int) cell;
         }
     }
 
     /**
-     * InputReader interface describes interface for the input readers ot the
-     * Book Finding problem. It describes the format of output of methods.
+     * InputReader that replays the initial conditions from the binary
+     * corpus written by {@link CorpusWriter}. The corpus is the header, the
+     * records of the fixed size and the table of the kinds of the enemies:
+     * <pre>
+     * header: int magic "BFSC", short version, unsigned short max enemies
+     *         number, long records number, long offset of the kinds table
+     * record: unsigned shorts sizeX, sizeY, actor's perception, actor x, y,
+     *         book x, y, cloak x, y, exit x, y, enemies number and max
+     *         enemies number of triples enemy kind, x, y
+     * kinds:  unsigned short kinds number and the kinds, each is unsigned
+     *         short length and UTF-8 bytes of the name
+     * </pre>
+     * The values are big-endian. The kind of the enemy in the record is its
+     * position in the kinds table, and the triples after the enemies number
+     * are not used. The kinds are found by their names among the kinds of
+     * the enemies registered in {@link BookFinding.Map}, so the enemies get
+     * the perception zones of the registered kinds. The reader maps the file
+     * into memory by windows and reads the fields of the record right from
+     * the mapping, so no bytes are copied before the map is built. The fixed
+     * size of the record lets the reader start at any record: the reader
+     * reads the given slice of the corpus, and the readers of the disjoint
+     * slices, see {@link #split(int)}, can be used from several threads at
+     * once. The reader itself is not thread-safe.
      */
-    public interface InputReader {
+    public static class CorpusInputReader implements InputReader {
+        static final int MAGIC = 0x42465343;
+        static final short VERSION = 2;
+        static final int HEADER_SIZE = 24;
+        // offset of the number of the records in the header, the offset of the kinds table follows it
+        static final int COUNT_OFFSET = 8;
+        // field of the enemies number, the fields of the record before the enemies and the fields of each enemy
+        static final int ENEMIES_FIELD = 11;
+        static final int FIELDS_NUMBER = ENEMIES_FIELD + 1;
+        static final int ENEMY_FIELDS_NUMBER = 3;
+        // max size of the kinds table: at most 32 kinds with the names of at most 64 KB
+        private static final int MAX_KINDS_SIZE = Character.BYTES + Integer.SIZE * (Character.BYTES + (1 << 16));
+        // records mapped at once, the mapping of a channel is limited by 2 GB
+        private static final long WINDOW_RECORDS = 1 << 22;
+        private final Path file;
+        private final int maxEnemiesNumber;
+        private final int recordSize;
+        // masks of the kinds of the enemies by their positions in the kinds table
+        private final int[] kindMasks;
+        private final long recordsNumber;
+        private final long toRecord;
+        private final long windowRecords;
+        private long nextRecord;
+        private MappedByteBuffer window;
+        private long windowFrom, windowTo;
+
         /**
-         * Method should return initial conditions for the Book Finding
-         * problem. Initial conditions include the initialized map with enemies
-         * and objects, actor's perception, his initial position and position
-         * of the exit.
+         * Constructor for the reader of the whole corpus.
          *
-         * @return [Map initMap, int actorPerception,
-         *         Pair< Integer, Integer> initActorPos,
-         *         Pair< Integer, Integer> exitPos] - initial conditions for
-         *         the Book Finding problem
+         * @param file file of the corpus
+         * @throws IOException if the file can not be read or is not a
+         *                     corpus
          */
-        Vector<Object> readInput();
-    }
+        public CorpusInputReader(Path file) throws IOException {
+            this(file, 0, Long.MAX_VALUE);
+        }
 
-    /**
-     * InputReader that reads the initial condition from the console.
-     */
-    public static class ConsoleInputReader implements InputReader {
+        /**
+         * Constructor for the reader of the records [fromRecord, toRecord)
+         * of the corpus. The end of the slice is cut by the end of the
+         * corpus.
+         *
+         * @param file file of the corpus
+         * @param fromRecord first record to read
+         * @param toRecord record after the last one to read
+         * @throws IOException if the file can not be read, is not a corpus
+         *                     or has the kinds of the enemies that are not
+         *                     registered
+         */
+        public CorpusInputReader(Path file, long fromRecord, long toRecord) throws IOException {
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = read(channel, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                    throw new IOException("Not a scenario corpus: " + file);
+                }
+                this.maxEnemiesNumber = header.getChar();
+                this.recordSize = recordSize(maxEnemiesNumber);
+                this.recordsNumber = header.getLong();
+                long kindsOffset = header.getLong();
+                if (recordsNumber < 0 || kindsOffset < HEADER_SIZE + recordsNumber * recordSize ||
+                    kindsOffset > channel.size()) {
+                    throw new IOException("Truncated scenario corpus: " + file);
+                }
+                ByteBuffer table = read(channel, kindsOffset, (int) min(channel.size() - kindsOffset, MAX_KINDS_SIZE));
+                this.kindMasks = readKinds(table);
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Truncated scenario corpus: " + file, e);
+            }
+            if (fromRecord < 0 || fromRecord > toRecord) {
+                throw new IllegalArgumentException("Invalid slice of the corpus: " + fromRecord + ".." + toRecord);
+            }
+            this.nextRecord = Math.min(fromRecord, recordsNumber);
+            this.toRecord = Math.min(toRecord, recordsNumber);
+            this.windowRecords = Math.min(WINDOW_RECORDS, Integer.MAX_VALUE / recordSize);
+        }
+
+        static int recordSize(int maxEnemiesNumber) {
+            return (FIELDS_NUMBER + maxEnemiesNumber * ENEMY_FIELDS_NUMBER) * Character.BYTES;
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                // read the whole buffer
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private int[] readKinds(ByteBuffer table) throws IOException {
+            // finds the masks of the registered kinds of the enemies by the names from the table
+            // the access to the masks of Filch and the cat registers the kinds of BookFinding
+            int enemyKindsMask = BookFinding.FILCH_MASK | BookFinding.CAT_MASK | BookFinding.Map.enemyKindsMask();
+            int[] kindMasks = new int[table.getChar()];
+            for (int k = 0; k < kindMasks.length; k++) {
+                byte[] name = new byte[table.getChar()];
+                table.get(name);
+                String kindName = new String(name, StandardCharsets.UTF_8);
+                for (int mask = enemyKindsMask; mask != 0 && kindMasks[k] == 0; mask &= mask - 1) {
+                    if (BookFinding.Map.itemKind(mask & -mask).toString().equals(kindName)) {
+                        kindMasks[k] = mask & -mask;
+                    }
+                }
+                if (kindMasks[k] == 0) {
+                    throw new IOException("Unknown kind of the enemy " + kindName + " in the corpus: " + file);
+                }
+            }
+            return kindMasks;
+        }
+
+        /**
+         * Returns the number of the records in the whole corpus.
+         */
+        public long getRecordsNumber() {
+            return recordsNumber;
+        }
+
+        /**
+         * Returns the max number of the enemies in the record of the corpus.
+         */
+        public int getMaxEnemiesNumber() {
+            return maxEnemiesNumber;
+        }
+
+        /**
+         * Returns if the slice has records left.
+         */
+        public boolean hasNext() {
+            return nextRecord < toRecord;
+        }
+
+        /**
+         * Returns the readers of the disjoint slices that together make the
+         * records left in the slice of this reader. Each reader can be used
+         * by its own thread.
+         *
+         * @param slicesNumber number of the slices
+         * @return readers of the slices
+         * @throws IOException if the file can not be read
+         */
+        public CorpusInputReader[] split(int slicesNumber) throws IOException {
+            if (slicesNumber <= 0) {
+                throw new IllegalArgumentException("Slices number must be positive");
+            }
+            CorpusInputReader[] readers = new CorpusInputReader[slicesNumber];
+            long recordsLeft = toRecord - nextRecord;
+            for (int slice = 0; slice < slicesNumber; slice++) {
+                readers[slice] = new CorpusInputReader(file, nextRecord + recordsLeft * slice / slicesNumber,
+                                                       nextRecord + recordsLeft * (slice + 1) / slicesNumber);
+            }
+            return readers;
+        }
 
         /**
-         * Returns initial conditions read from the console.
+         * Returns initial conditions of the next record of the slice.
+         *
+         * @throws NoSuchElementException if the slice has no records left
+         * @throws UncheckedIOException if the file can not be read or the
+         *                              record is corrupted
          */
         @Override
         public Vector<Object> readInput() {
-            Vector<Object> result = new Vector<>();
+            if (!hasNext()) {
+                throw new NoSuchElementException("No records left in the slice of " + file);
+            }
+            if (window == null || nextRecord >= windowTo) {
+                mapWindow(nextRecord);
+            }
+            int offset = (int) ((nextRecord - windowFrom) * recordSize);
+            nextRecord++;
+            int sizeX = window.getChar(offset);
+            int sizeY = window.getChar(offset + 2);
+            int actorPerception = window.getChar(offset + 4);
+            int initActorX = window.getChar(offset + 6);
+            int initActorY = window.getChar(offset + 8);
+            int exitX = window.getChar(offset + 18);
+            int exitY = window.getChar(offset + 20);
+            int enemiesNumber = window.getChar(offset + ENEMIES_FIELD * Character.BYTES);
+            if (enemiesNumber > maxEnemiesNumber) {
+                throw corruptedRecord();
+            }
 
-            BookFinding.Map initMap = new BookFinding.Map(9, 9);
-
-            Scanner scanner = new Scanner(System.in);
-            String inputStr = scanner.nextLine();
-            inputStr = inputStr.replaceAll("\\[", " ");
-            inputStr = inputStr.replaceAll("]", " ");
-            inputStr = inputStr.replaceAll(",", " ");
-            Scanner scanner1 = new Scanner(inputStr);
-            int initActorX = scanner1.nextInt();
-            int initActorY = scanner1.nextInt();
-            int filchX = scanner1.nextInt();
-            int filchY = scanner1.nextInt();
-            int catX = scanner1.nextInt();
-            int catY = scanner1.nextInt();
-            int bookX = scanner1.nextInt();
-            int bookY = scanner1.nextInt();
-            int cloakX = scanner1.nextInt();
-            int cloakY = scanner1.nextInt();
-            int exitX = scanner1.nextInt();
-            int exitY = scanner1.nextInt();
-            int actorPerception = scanner.nextInt();
-            scanner.close();
-            scanner1.close();
-
-            initMap.addEnemy(BookFinding.FILCH, 2, filchX, filchY);
-            initMap.addEnemy(BookFinding.CAT, 1, catX, catY);
-            initMap.addItem(BookFinding.ACTOR, initActorX, initActorY);
-            initMap.addItem(BookFinding.BOOK, bookX, bookY);
-            initMap.addItem(BookFinding.CLOAK, cloakX, cloakY);
-            initMap.addItem(BookFinding.EXIT, exitX, exitY);
+            BookFinding.Map initMap = new BookFinding.Map(sizeY, sizeX);
+            int enemyOffset = offset + FIELDS_NUMBER * Character.BYTES;
+            for (int enemy = 0; enemy < enemiesNumber; enemy++) {
+                int kind = window.getChar(enemyOffset);
+                if (kind >= kindMasks.length) {
+                    throw corruptedRecord();
+                }
+                initMap.addEnemies(kindMasks[kind], window.getChar(enemyOffset + 2), window.getChar(enemyOffset + 4));
+                enemyOffset += ENEMY_FIELDS_NUMBER * Character.BYTES;
+            }
+            initMap.addItems(BookFinding.ACTOR_MASK, initActorX, initActorY);
+            initMap.addItems(BookFinding.BOOK_MASK, window.getChar(offset + 10), window.getChar(offset + 12));
+            initMap.addItems(BookFinding.CLOAK_MASK, window.getChar(offset + 14), window.getChar(offset + 16));
+            initMap.addItems(BookFinding.EXIT_MASK, exitX, exitY);
 
+            Vector<Object> result = new Vector<>();
             result.add(initMap);
             result.add(actorPerception);
             result.add(new Pair<>(initActorX, initActorY));
             result.add(new Pair<>(exitX, exitY));
-
             return result;
         }
+
+        private UncheckedIOException corruptedRecord() {
+            return new UncheckedIOException(new IOException("Corrupted record " + (nextRecord - 1) + " of " + file));
+        }
+
+        private void mapWindow(long fromRecord) {
+            windowFrom = fromRecord;
+            windowTo = Math.min(fromRecord + windowRecords, toRecord);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // the mapping stays valid after the channel is closed
+                window = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + windowFrom * recordSize,
+                                     (windowTo - windowFrom) * recordSize);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     /**
-     * InputReader that make initial conditions automatically.
+     * CorpusWriter writes the initial conditions into the binary corpus
+     * read by {@link CorpusInputReader}. The conditions must have exactly
+     * one book and one cloak and at most the given number of the enemies on
+     * the map, and the sizes and the coordinates must fit into unsigned
+     * shorts. The number of the records and the kinds of the enemies are
+     * written on {@link #close()}.
      */
-    public static class AutogenInputReader implements InputReader {
+    public static class CorpusWriter implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int maxEnemiesNumber;
+        private final int recordSize;
+        private final IntList cells = new IntList();
+        // kinds of the enemies by their positions in the kinds table
+        private final Vector<Object> kinds = new Vector<>();
+        private long recordsNumber = 0;
 
-        private int getRandomNumber(int min, int max) {
-            return (int) Math.round((Math.random() * (max - min)) + min);
+        /**
+         * Constructor for the writer of the new corpus of the conditions
+         * with at most two enemies, e.g. Filch and the cat. The existing file
+         * is overwritten.
+         *
+         * @param file file of the corpus
+         * @throws IOException if the file can not be written
+         */
+        public CorpusWriter(Path file) throws IOException {
+            this(file, 2);
         }
 
         /**
-         * Returns initial conditions generated automatically.
+         * Constructor for the writer of the new corpus of the conditions
+         * with at most the given number of the enemies. Every record takes
+         * the room of the max number of the enemies. The existing file is
+         * overwritten.
+         *
+         * @param file file of the corpus
+         * @param maxEnemiesNumber max number of the enemies on the map
+         * @throws IOException if the file can not be written
          */
-        @Override
-        public Vector<Object> readInput() {
-            Vector<Object> result = new Vector<>();
-            BookFinding.Map initMap;
-            int initActorY = 0;
-            int initActorX = 0;
-            int actorPerception = getRandomNumber(1, 2);
-            int exitX;
-            int exitY;
+        public CorpusWriter(Path file, int maxEnemiesNumber) throws IOException {
+            if (maxEnemiesNumber < 0 || maxEnemiesNumber > Character.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid max enemies number: " + maxEnemiesNumber);
+            }
+            this.maxEnemiesNumber = maxEnemiesNumber;
+            this.recordSize = CorpusInputReader.recordSize(maxEnemiesNumber);
+            this.buffer = ByteBuffer.allocateDirect(Math.max(1 << 16, CorpusInputReader.HEADER_SIZE + recordSize));
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.putInt(CorpusInputReader.MAGIC);
+            buffer.putShort(CorpusInputReader.VERSION);
+            buffer.putChar((char) maxEnemiesNumber);
+            buffer.putLong(0);
+            buffer.putLong(0);
+        }
 
-            do {
-                initMap = new BookFinding.Map(9, 9);
-                int filchX = getRandomNumber(0, 8);
-                int filchY = getRandomNumber(0, 8);
-                int catX = getRandomNumber(0, 8);
-                int catY = getRandomNumber(0, 8);
-                int bookX = getRandomNumber(0, 8);
-                int bookY = getRandomNumber(0, 8);
-                int cloakX = getRandomNumber(0, 8);
-                int cloakY = getRandomNumber(0, 8);
-                exitX = getRandomNumber(0, 8);
-                exitY = getRandomNumber(0, 8);
-
-                initMap.addEnemy(BookFinding.FILCH, 2, filchX, filchY);
-                initMap.addEnemy(BookFinding.CAT, 1, catX, catY);
-                initMap.addItem(BookFinding.ACTOR, initActorX, initActorY);
-                initMap.addItem(BookFinding.BOOK, bookX, bookY);
-                initMap.addItem(BookFinding.CLOAK, cloakX, cloakY);
-                initMap.addItem(BookFinding.EXIT, exitX, exitY);
-
-            } while (!BookFinding.isMapValid(initMap));
+        /**
+         * Returns the number of the records written.
+         */
+        public long getRecordsNumber() {
+            return recordsNumber;
+        }
 
-            result.add(initMap);
-            result.add(actorPerception);
-            result.add(new Pair<Integer, Integer>(initActorX, initActorY));
-            result.add(new Pair<Integer, Integer>(exitX, exitY));
-            return result;
+        /**
+         * Writes the record of the initial conditions.
+         *
+         * @param conditions initial conditions in the format of
+         *                   {@link InputReader#readInput()}
+         * @throws IOException if the file can not be written
+         */
+        @SuppressWarnings("unchecked")
+        public void write(Vector<Object> conditions) throws IOException {
+            BookFinding.Map map = (BookFinding.Map) conditions.get(0);
+            int actorPerception = (Integer) conditions.get(1);
+            Pair<Integer, Integer> initActorPos = (Pair<Integer, Integer>) conditions.get(2);
+            Pair<Integer, Integer> exitPos = (Pair<Integer, Integer>) conditions.get(3);
+            int book = findSingle(map, BookFinding.BOOK_MASK, BookFinding.BOOK);
+            int cloak = findSingle(map, BookFinding.CLOAK_MASK, BookFinding.CLOAK);
+
+            if (buffer.remaining() < recordSize) {
+                flush();
+            }
+            int recordStart = buffer.position();
+            try {
+                putRecord(map, actorPerception, initActorPos, exitPos, book, cloak);
+            }
+            catch (IllegalArgumentException e) {
+                // the record that does not fit is dropped
+                buffer.position(recordStart);
+                throw e;
+            }
+            recordsNumber++;
+        }
+
+        private void putRecord(BookFinding.Map map, int actorPerception, Pair<Integer, Integer> initActorPos,
+                               Pair<Integer, Integer> exitPos, int book, int cloak) {
+            int recordStart = buffer.position();
+            putField(map.sizeX);
+            putField(map.sizeY);
+            putField(actorPerception);
+            putField(initActorPos.first);
+            putField(initActorPos.second);
+            putField(map.toX(book));
+            putField(map.toY(book));
+            putField(map.toX(cloak));
+            putField(map.toY(cloak));
+            putField(exitPos.first);
+            putField(exitPos.second);
+            int enemiesField = buffer.position();
+            buffer.putChar((char) 0);
+            int enemiesNumber = 0;
+            int enemyKindsMask = BookFinding.Map.enemyKindsMask();
+            cells.clear();
+            map.findItems(enemyKindsMask, cells);
+            for (int c = 0; c < cells.size(); c++) {
+                int cell = cells.get(c);
+                // the cell can keep the enemies of several kinds
+                for (int mask = map.items[cell] & enemyKindsMask; mask != 0; mask &= mask - 1) {
+                    if (enemiesNumber == maxEnemiesNumber) {
+                        throw new IllegalArgumentException("The corpus keeps at most " + maxEnemiesNumber +
+                                                           " enemies, the map has more");
+                    }
+                    putField(kindIndex(BookFinding.Map.itemKind(mask & -mask)));
+                    putField(map.toX(cell));
+                    putField(map.toY(cell));
+                    enemiesNumber++;
+                }
+            }
+            buffer.putChar(enemiesField, (char) enemiesNumber);
+            // the room of the enemies that are not on the map
+            while (buffer.position() < recordStart + recordSize) {
+                buffer.putChar((char) 0);
+            }
+        }
+
+        private int kindIndex(Object kind) {
+            int index = kinds.indexOf(kind);
+            if (index < 0) {
+                index = kinds.size();
+                kinds.add(kind);
+            }
+            return index;
+        }
+
+        private int findSingle(BookFinding.Map map, int itemMask, Object item) {
+            cells.clear();
+            map.findItems(itemMask, cells);
+            if (cells.size() != 1) {
+                throw new IllegalArgumentException("The corpus keeps exactly one " + item + ", the map has " +
+                                                   cells.size());
+            }
+            return cells.get(0);
+        }
+
+        private void putField(int value) {
+            if (value < 0 || value > Character.MAX_VALUE) {
+                throw new IllegalArgumentException("The value does not fit into the corpus: " + value);
+            }
+            buffer.putChar((char) value);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes the records left, the kinds of the enemies and the number
+         * of the records, and closes the file.
+         *
+         * @throws IOException if the file can not be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                long kindsOffset = CorpusInputReader.HEADER_SIZE + recordsNumber * recordSize;
+                buffer.putChar((char) kinds.size());
+                for (Object kind: kinds) {
+                    byte[] name = kind.toString().getBytes(StandardCharsets.UTF_8);
+                    if (name.length > Character.MAX_VALUE || buffer.remaining() < Character.BYTES + name.length) {
+                        throw new IllegalArgumentException("Too long name of the kind of the enemy: " + kind);
+                    }
+                    buffer.putChar((char) name.length);
+                    buffer.put(name);
+                }
+                flush();
+                ByteBuffer count = ByteBuffer.allocate(2 * Long.BYTES);
+                count.putLong(recordsNumber).putLong(kindsOffset).flip();
+                while (count.hasRemaining()) {
+                    channel.write(count, CorpusInputReader.COUNT_OFFSET + count.position());
+                }
+            }
+            finally {
+                channel.close();
+            }
         }
     }
 
@@ -1669,5 +5156,147 @@ public class MakarShevchenko {
             Pair<?, ?> pair = (Pair<?, ?>) o;
             return Objects.equals(first, pair.first) && Objects.equals(second, pair.second);
         }
+
+        /**
+         * Returns hash code of the pair that is consistent with
+         * {@link #equals(Object)}.
+         *
+         * @return hash code of the pair
+         */
+        @Override
+        public int hashCode() {
+            return Objects.hash(first, second);
+        }
+    }
+
+    /**
+     * IntList class is a growable list of primitive integers. It is used
+     * instead of the list of boxed values on the hot paths, e.g. for the
+     * paths of cell indices.
+     */
+    public static class IntList {
+        private int[] values;
+        private int size = 0;
+
+        /**
+         * Constructor for the empty list.
+         */
+        public IntList() {
+            this.values = new int[16];
+        }
+
+        /**
+         * Returns the number of values in the list.
+         *
+         * @return the number of values in the list
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the value at the given position.
+         *
+         * @param i position of the value
+         * @return the value at the given position
+         */
+        public int get(int i) {
+            if (i >= size) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+            }
+            return values[i];
+        }
+
+        /**
+         * Returns the last value of the list.
+         *
+         * @return the last value of the list
+         */
+        public int last() {
+            return get(size - 1);
+        }
+
+        /**
+         * Appends the value to the end of the list.
+         *
+         * @param value value to append
+         */
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * values.length);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Appends the values of the other list starting from the given
+         * position to the end of the list.
+         *
+         * @param other list to copy the values from
+         * @param from position of the first value to copy
+         */
+        public void addAll(IntList other, int from) {
+            for (int i = from; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        /**
+         * Appends all the values of the other list to the end of the list.
+         *
+         * @param other list to copy the values from
+         */
+        public void addAll(IntList other) {
+            addAll(other, 0);
+        }
+
+        /**
+         * Removes the last value of the list.
+         */
+        public void removeLast() {
+            size--;
+        }
+
+        /**
+         * Removes all the values of the list.
+         */
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * Reverses the order of the values in the list.
+         */
+        public void reverse() {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                int value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+        }
+
+        /**
+         * Returns if the value is contained in the list.
+         *
+         * @param value value to check
+         * @return if the value is contained in the list
+         */
+        public boolean contains(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the values of the list as a new array.
+         *
+         * @return the values of the list
+         */
+        public int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
     }
 }
\ No newline at end of file